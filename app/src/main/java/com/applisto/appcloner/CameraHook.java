@@ -16,9 +16,13 @@ import android.graphics.ImageFormat;
 import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Rect;
+import android.graphics.RectF;
 import android.hardware.Camera;
+import android.hardware.camera2.CaptureRequest;
 import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.params.OutputConfiguration;
+import android.hardware.camera2.params.SessionConfiguration;
 import android.media.Image;
 import android.media.ImageReader;
 import android.os.Build;
@@ -33,10 +37,16 @@ import android.view.WindowManager;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import top.canyie.pine.Pine;
 import top.canyie.pine.callback.MethodHook;
@@ -75,6 +85,7 @@ public static void resetTransformations() {
     synchronized (MATRIX_LOCK) {
         sTransformationMatrix.reset();
     }
+    onFrameChanged();
 }
 
 /**
@@ -85,6 +96,7 @@ public static void applyRotation(float degrees) {
         sTransformationMatrix.postRotate(degrees);
         Log.d(TAG, "Applied rotation: " + degrees + " degrees");
     }
+    onFrameChanged();
 }
 
 /**
@@ -97,6 +109,7 @@ public static void applyFlip(boolean horizontal, boolean vertical) {
         sTransformationMatrix.postScale(scaleX, scaleY);
         Log.d(TAG, "Applied flip: horizontal=" + horizontal + ", vertical=" + vertical);
     }
+    onFrameChanged();
 }
     // Zoom tunables
     private static final float ZOOM_STEP_IN = 1.15f;
@@ -120,6 +133,8 @@ public static void applyFlip(boolean horizontal, boolean vertical) {
 
     // Synchronization for bitmap state
     private static final Object BITMAP_LOCK = new Object();
+    // Per persisted file: latest write requested; also the lock writes to that file hold
+    private static final Map<String, AtomicInteger> PERSIST_SEQ = new ConcurrentHashMap<>();
 
     // Document images (raw and enhanced) - USING SMALLER DEFAULT SIZES
     private static Bitmap sFrontRawBmp;
@@ -146,53 +161,175 @@ public static void applyFlip(boolean horizontal, boolean vertical) {
     private static volatile boolean sSelfieMode = false;
 
     private static final AtomicBoolean sHookInstalled = new AtomicBoolean(false);
+    private static final Object INSTALL_LOCK = new Object();
+    private static final Object FRAMES_LOCK = new Object();
+    private static volatile boolean sFramesLoaded;
+    private static HookInstaller.Deferred sDeferred;
+
+    // Hook groups (see HookSpec)
+    static final String GROUP_CAMERA1 = "camera1";
+    static final String GROUP_CAMERA2 = "camera2";
+    static final String GROUP_CAMERA2_PREVIEW = "camera2_preview";
+    static final String GROUP_CAMERA_OPEN = "camera_open";
+
+    private static final String CAMERA_DEVICE_IMPL = "android.hardware.camera2.impl.CameraDeviceImpl";
+
+    // Bumped whenever the frame a capture or preview would show changes
+    private static final AtomicInteger sFrameGeneration = new AtomicInteger();
+
+    // Last encoded capture, shared across captures until the frame generation changes
+    private static final int ENCODE_CAMERA1 = 1;
+    private static final int ENCODE_CAMERA2 = 2;
+    private static volatile EncodedFrame sEncodedFrame;
+
+    private static final class EncodedFrame {
+        final int kind;
+        final int generation;
+        final int width;
+        final int height;
+        final int budget;
+        final float[] transform; // getTransformationMatrix() values the frame was rendered with
+        final byte[] jpeg;
+
+        EncodedFrame(int kind, int generation, int width, int height, int budget, float[] transform,
+                     byte[] jpeg) {
+            this.kind = kind;
+            this.generation = generation;
+            this.width = width;
+            this.height = height;
+            this.budget = budget;
+            this.transform = transform;
+            this.jpeg = jpeg;
+        }
+
+        boolean matches(int kind, int generation, int width, int height, int budget, float[] transform) {
+            return this.kind == kind && this.generation == generation
+                    && this.width == width && this.height == height && this.budget == budget
+                    && Arrays.equals(this.transform, transform);
+        }
+    }
     private static long sLastNotificationTime = 0;
 
-    // Entry point (idempotent)
+    // Entry point (idempotent). Concurrent callers wait until the first one has loaded
+    // the frames and installed the hooks.
     public static void install(Context ctx) {
         if (ctx == null) {
             Log.e(TAG, "install: Context is null!");
             return;
         }
         
-        if (sHookInstalled.getAndSet(true)) {
-            Log.i(TAG, "Hooks already installed, updating context");
+        synchronized (INSTALL_LOCK) {
+            if (sHookInstalled.get()) {
+                Log.i(TAG, "Hooks already installed, updating context");
+                sContext = ctx.getApplicationContext();
+                return;
+            }
+            
             sContext = ctx.getApplicationContext();
-            return;
+            Log.i(TAG, "=== INSTALLING CAMERA HOOKS ===");
+            Log.i(TAG, "Package: " + sContext.getPackageName());
+
+            try {
+                Pine.ensureInitialized();
+                Log.i(TAG, "Pine framework initialized");
+            } catch (Throwable t) {
+                Log.e(TAG, "Pine initialization failed", t);
+                sHookInstalled.set(true);
+                return;
+            }
+
+            ensureFramesLoaded(sContext);
+
+            // Declare all camera hooks, then resolve and install them in one batch
+            List<HookSpec> specs = new ArrayList<>();
+            hookCamera1(specs);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                hookCamera2(specs);
+            }
+            hookCameraOpenForSelfieDetection(specs);
+            int installed = 0;
+            for (HookInstaller.Result result : HookInstaller.install(specs)) {
+                if (result.isInstalled()) installed++;
+            }
+            int failed = specs.size() - installed;
+            sHookInstalled.set(true);
+            
+            Log.i(TAG, "=== CAMERA HOOKS INSTALLED: " + installed + " ok, " + failed + " failed or skipped ===");
         }
-        
-        sContext = ctx.getApplicationContext();
-        Log.i(TAG, "=== INSTALLING CAMERA HOOKS ===");
-        Log.i(TAG, "Package: " + sContext.getPackageName());
 
-        try {
-            Pine.ensureInitialized();
-            Log.i(TAG, "Pine framework initialized");
-        } catch (Throwable t) {
-            Log.e(TAG, "Pine initialization failed", t);
+        showNotification(true);
+    }
+
+    /**
+     * Load the fake frames without installing any hook; no-op once loaded
+     */
+    public static void ensureFramesLoaded(Context ctx) {
+        if (sFramesLoaded) {
             return;
         }
+        synchronized (FRAMES_LOCK) {
+            if (sFramesLoaded) {
+                return;
+            }
+            if (sContext == null) {
+                sContext = ctx.getApplicationContext();
+            }
+            loadFakeImage();
+            sFramesLoaded = true;
+        }
+    }
 
-        loadFakeImage();
-
-        // Install all camera hooks
-        hookCamera1();
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
-            hookCamera2();
+    /**
+     * Lazy variant of install(): only arms triggers on CameraManager creation (the first
+     * getSystemService(CAMERA_SERVICE)) and Camera.open. Images are loaded and the camera
+     * hooks installed when the app first reaches one of them.
+     */
+    public static synchronized void installOnFirstUse(Context ctx) {
+        if (ctx == null) {
+            Log.e(TAG, "installOnFirstUse: Context is null!");
+            return;
+        }
+        if (sHookInstalled.get() || sDeferred != null) {
+            return;
         }
-        hookCameraOpenForSelfieDetection();
-        
-        Log.i(TAG, "=== ALL CAMERA HOOKS INSTALLED SUCCESSFULLY ===");
 
-        showNotification(true);
+        final Context appContext = ctx.getApplicationContext();
+        sContext = appContext;
+        sDeferred = HookInstaller.defer("camera", new Runnable() {
+            @Override
+            public void run() {
+                install(appContext);
+            }
+        });
+        sDeferred.onConstructors("android.hardware.camera2.CameraManager")
+                .on(Camera.class, "open")
+                .on(Camera.class, "open", int.class)
+                .arm();
     }
 
     // Public API
     public static Bitmap getFakeBitmap() {
+        return getFakeBitmap(null);
+    }
+
+    /**
+     * Copy of the frame for a requested lens: "front" (or "selfie") gives the selfie frame,
+     * "back" the document side currently served; null mode means the frame currently served
+     */
+    public static Bitmap getFakeBitmap(String mode) {
         synchronized (BITMAP_LOCK) {
-            Bitmap b = sSelfieMode
-                    ? sEnhancedSelfieBmp
-                    : (sIsFrontSide ? sEnhancedFrontBmp : sEnhancedBackBmp);
+            Bitmap b;
+            if ("front".equals(mode) || "selfie".equals(mode)) {
+                // Front lens: the selfie frame
+                b = sEnhancedSelfieBmp;
+            } else if ("back".equals(mode)) {
+                // Back lens: whichever document side is being served
+                b = sIsFrontSide ? sEnhancedFrontBmp : sEnhancedBackBmp;
+            } else {
+                b = sSelfieMode
+                        ? sEnhancedSelfieBmp
+                        : (sIsFrontSide ? sEnhancedFrontBmp : sEnhancedBackBmp);
+            }
             if (b == null || b.isRecycled()) {
                 Log.w(TAG, "getFakeBitmap: No valid bitmap available");
                 return null;
@@ -216,7 +353,7 @@ public static void applyFlip(boolean horizontal, boolean vertical) {
             sFrontZoom = 1.0f;
             updateEnhancedFrontLocked();
         }
-        saveBitmapToFile(sFrontRawBmp, FRONT_FILE);
+        persistRawBitmapAsync(FRONT_FILE);
         Log.i(TAG, "Front bitmap updated");
         showNotification(true);
     }
@@ -231,7 +368,7 @@ public static void applyFlip(boolean horizontal, boolean vertical) {
             sBackZoom = 1.0f;
             updateEnhancedBackLocked();
         }
-        saveBitmapToFile(sBackRawBmp, BACK_FILE);
+        persistRawBitmapAsync(BACK_FILE);
         Log.i(TAG, "Back bitmap updated");
         showNotification(true);
     }
@@ -253,6 +390,61 @@ public static void applyFlip(boolean horizontal, boolean vertical) {
     public static boolean isSelfieMode() { return sSelfieMode; }
     public static boolean isFrontSide()  { return sIsFrontSide; }
 
+    /**
+     * Monotonic counter of the frame currently served; changes on any image or transform update
+     */
+    public static int getFrameGeneration() { return sFrameGeneration.get(); }
+
+    private static void onFrameChanged() {
+        sFrameGeneration.incrementAndGet();
+        FakePreviewRenderer.requestRender();
+    }
+
+    /**
+     * Draw the current fake frame fitted into a w x h canvas, without copying the bitmap
+     */
+    public static void drawFakeFrame(Canvas canvas, int w, int h) {
+        canvas.drawColor(0xFF101010);
+        Matrix global = getTransformationMatrix();
+        synchronized (BITMAP_LOCK) {
+            Bitmap b = sSelfieMode
+                    ? sEnhancedSelfieBmp
+                    : (sIsFrontSide ? sEnhancedFrontBmp : sEnhancedBackBmp);
+            if (b == null || b.isRecycled()) return;
+
+            Matrix m = new Matrix();
+            m.setTranslate(-b.getWidth() / 2f, -b.getHeight() / 2f);
+            m.postConcat(global);
+            RectF bounds = new RectF(0, 0, b.getWidth(), b.getHeight());
+            m.mapRect(bounds);
+            float scale = Math.min(w / bounds.width(), h / bounds.height());
+            m.postScale(scale, scale);
+            m.postTranslate(w / 2f, h / 2f);
+            canvas.drawBitmap(b, m, PREVIEW_PAINT);
+        }
+    }
+
+    private static final Paint PREVIEW_PAINT = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    /**
+     * Copy of the frame for mode (see getFakeBitmap) with the global transform applied, i.e.
+     * the picture the preview shows. Every capture path goes through this.
+     */
+    public static Bitmap getCaptureBitmap(String mode, Matrix transform) {
+        Bitmap b = getFakeBitmap(mode);
+        Bitmap t = FakeImageProcessor.render(b, 1f, transform);
+        if (t != b) {
+            recycleQuietly(b);
+        }
+        return t;
+    }
+
+    private static float[] matrixValues(Matrix m) {
+        float[] values = new float[9];
+        m.getValues(values);
+        return values;
+    }
+
     private static String getSharedDir() {
         if (sContext == null) return null;
         File base = sContext.getExternalCacheDir();
@@ -332,6 +524,61 @@ public static void applyFlip(boolean horizontal, boolean vertical) {
         return bmp;
     }
 
+    /**
+     * Encode the current raw front/back image to disk on the shared image executor.
+     * Writes to one file run one at a time and only the latest request is written.
+     */
+    private static void persistRawBitmapAsync(final String relativeFileName) {
+        final AtomicInteger seq = persistSeq(relativeFileName);
+        final Bitmap copy;
+        final int mine;
+        synchronized (BITMAP_LOCK) {
+            Bitmap raw = FRONT_FILE.equals(relativeFileName) ? sFrontRawBmp : sBackRawBmp;
+            copy = deepCopyBitmap(raw);
+            mine = seq.incrementAndGet();
+        }
+        if (copy == null) return;
+        ImageProcessingExecutor.Task task = ImageProcessingExecutor.submit("persist:" + relativeFileName,
+                ImageProcessingExecutor.PRIORITY_BACKGROUND, () -> {
+                    try {
+                        persistIfLatest(copy, relativeFileName, seq, mine);
+                    } finally {
+                        recycleQuietly(copy);
+                    }
+                });
+        if (task == null) {
+            // Queue full: persist inline rather than losing the image
+            persistIfLatest(copy, relativeFileName, seq, mine);
+            recycleQuietly(copy);
+        }
+    }
+
+    private static AtomicInteger persistSeq(String relativeFileName) {
+        AtomicInteger seq = PERSIST_SEQ.get(relativeFileName);
+        if (seq == null) {
+            AtomicInteger created = new AtomicInteger();
+            seq = PERSIST_SEQ.putIfAbsent(relativeFileName, created);
+            if (seq == null) {
+                seq = created;
+            }
+        }
+        return seq;
+    }
+
+    private static void persistIfLatest(Bitmap bmp, String relativeFileName, AtomicInteger seq, int mine) {
+        synchronized (seq) {
+            if (seq.get() != mine) {
+                Log.d(TAG, "Skipping stale write of " + relativeFileName);
+                return;
+            }
+            saveBitmapToFile(bmp, relativeFileName);
+        }
+    }
+
+    /**
+     * Encode to a temp file and rename it over the target, so a reader (or a crash
+     * mid-write) never sees a truncated JPEG
+     */
     private static void saveBitmapToFile(Bitmap bmp, String relativeFileName) {
         if (bmp == null || bmp.isRecycled()) return;
         String sharedDir = getSharedDir();
@@ -339,14 +586,20 @@ public static void applyFlip(boolean horizontal, boolean vertical) {
             Log.w(TAG, "saveBitmapToFile: no shared dir (context null); skipping persistence");
             return;
         }
+        File file = new File(sharedDir, relativeFileName);
+        File tmp = new File(sharedDir, relativeFileName + ".tmp");
         try {
-            File file = new File(sharedDir, relativeFileName);
-            try (FileOutputStream fos = new FileOutputStream(file)) {
+            try (FileOutputStream fos = new FileOutputStream(tmp)) {
                 bmp.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, fos);
+                fos.getFD().sync();
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("rename " + tmp + " -> " + file + " failed");
             }
             Log.d(TAG, "Saved bitmap to " + file.getAbsolutePath());
         } catch (Throwable t) {
-            Log.e(TAG, "Failed to save bitmap to " + sharedDir + "/" + relativeFileName, t);
+            tmp.delete();
+            Log.e(TAG, "Failed to save bitmap to " + file.getAbsolutePath(), t);
         }
     }
 
@@ -356,6 +609,7 @@ public static void applyFlip(boolean horizontal, boolean vertical) {
         Bitmap trans = applyTransform(sFrontRawBmp, sFrontRotation, sFrontFlipped, sFrontZoom);
         sEnhancedFrontBmp = enhanceForVerification(trans);
         recycleQuietly(trans);
+        onFrameChanged();
     }
 
     private static void updateEnhancedBackLocked() {
@@ -364,6 +618,7 @@ public static void applyFlip(boolean horizontal, boolean vertical) {
         Bitmap trans = applyTransform(sBackRawBmp, sBackRotation, sBackFlipped, sBackZoom);
         sEnhancedBackBmp = enhanceForVerification(trans);
         recycleQuietly(trans);
+        onFrameChanged();
     }
 
     private static void updateEnhancedSelfieLocked() {
@@ -372,6 +627,7 @@ public static void applyFlip(boolean horizontal, boolean vertical) {
         Bitmap trans = applyTransform(sSelfieRawBmp, sSelfieRotation, sSelfieFlipped, sSelfieZoom);
         sEnhancedSelfieBmp = enhanceForVerification(trans);
         recycleQuietly(trans);
+        onFrameChanged();
     }
 
     private static Bitmap applyTransform(Bitmap src, int rotation, boolean flipped, float zoom) {
@@ -545,19 +801,9 @@ public static void applyFlip(boolean horizontal, boolean vertical) {
     }
 
     // Hook Camera1 takePicture
-    private static void hookCamera1() {
-        Log.d(TAG, "Installing Camera1 hooks...");
-        
+    private static void hookCamera1(List<HookSpec> specs) {
         // 4-arg: (shutter, raw, postview, jpeg)
-        try {
-            Method m = Camera.class.getDeclaredMethod(
-                    "takePicture",
-                    android.hardware.Camera.ShutterCallback.class,
-                    android.hardware.Camera.PictureCallback.class,
-                    android.hardware.Camera.PictureCallback.class,
-                    android.hardware.Camera.PictureCallback.class
-            );
-            Pine.hook(m, new MethodHook() {
+        specs.add(HookSpec.method(GROUP_CAMERA1, Camera.class, "takePicture", new MethodHook() {
                 @Override public void beforeCall(CallFrame cf) {
                     Log.i(TAG, "Camera1 4-arg takePicture INTERCEPTED");
                     injectCamera1((Camera) cf.thisObject,
@@ -567,20 +813,11 @@ public static void applyFlip(boolean horizontal, boolean vertical) {
                             (Camera.PictureCallback) cf.args[3]);
                     cf.setResult(null);
                 }
-            });
-        } catch (Throwable t) {
-            Log.e(TAG, "Camera1 4-arg takePicture hook failed", t);
-        }
+            }, Camera.ShutterCallback.class, Camera.PictureCallback.class,
+                Camera.PictureCallback.class, Camera.PictureCallback.class).priority(HookSpec.PRIORITY_HIGH));
 
         // 3-arg: (shutter, raw, jpeg)
-        try {
-            Method m = Camera.class.getDeclaredMethod(
-                    "takePicture",
-                    android.hardware.Camera.ShutterCallback.class,
-                    android.hardware.Camera.PictureCallback.class,
-                    android.hardware.Camera.PictureCallback.class
-            );
-            Pine.hook(m, new MethodHook() {
+        specs.add(HookSpec.method(GROUP_CAMERA1, Camera.class, "takePicture", new MethodHook() {
                 @Override public void beforeCall(CallFrame cf) {
                     Log.i(TAG, "Camera1 3-arg takePicture INTERCEPTED");
                     injectCamera1((Camera) cf.thisObject,
@@ -590,19 +827,11 @@ public static void applyFlip(boolean horizontal, boolean vertical) {
                             (Camera.PictureCallback) cf.args[2]);
                     cf.setResult(null);
                 }
-            });
-        } catch (Throwable t) {
-            Log.e(TAG, "Camera1 3-arg takePicture hook failed", t);
-        }
+            }, Camera.ShutterCallback.class, Camera.PictureCallback.class,
+                Camera.PictureCallback.class).priority(HookSpec.PRIORITY_HIGH));
 
         // 2-arg: (shutter, jpeg)
-        try {
-            Method m = Camera.class.getDeclaredMethod(
-                    "takePicture",
-                    android.hardware.Camera.ShutterCallback.class,
-                    android.hardware.Camera.PictureCallback.class
-            );
-            Pine.hook(m, new MethodHook() {
+        specs.add(HookSpec.method(GROUP_CAMERA1, Camera.class, "takePicture", new MethodHook() {
                 @Override public void beforeCall(CallFrame cf) {
                     Log.i(TAG, "Camera1 2-arg takePicture INTERCEPTED");
                     injectCamera1((Camera) cf.thisObject,
@@ -612,10 +841,7 @@ public static void applyFlip(boolean horizontal, boolean vertical) {
                             (Camera.PictureCallback) cf.args[1]);
                     cf.setResult(null);
                 }
-            });
-        } catch (Throwable t) {
-            Log.e(TAG, "Camera1 2-arg takePicture hook failed", t);
-        }
+            }, Camera.ShutterCallback.class, Camera.PictureCallback.class).priority(HookSpec.PRIORITY_HIGH));
     }
 
     private static void injectCamera1(Camera cam,
@@ -623,6 +849,8 @@ public static void applyFlip(boolean horizontal, boolean vertical) {
                                       Camera.PictureCallback rawCallback,
                                       Camera.PictureCallback postviewCallback,
                                       Camera.PictureCallback jpegCallback) {
+        CaptureMetrics.Capture metrics = CaptureMetrics.begin(CaptureMetrics.PATH_CAMERA1);
+        boolean delivered = false;
         try {
             Log.i(TAG, "INJECTING FAKE IMAGE INTO CAMERA1");
             showNotification(true);
@@ -637,16 +865,39 @@ public static void applyFlip(boolean horizontal, boolean vertical) {
                 int w = (sz != null) ? Math.min(sz.width, MAX_IMAGE_DIMENSION) : 1080; // Limit size
                 int h = (sz != null) ? Math.min(sz.height, MAX_IMAGE_DIMENSION) : 1440;
 
-                Bitmap srcBmp = getFakeBitmap();
-                if (srcBmp == null) {
-                    Log.w(TAG, "No fake bitmap for Camera1 injection");
-                    return;
+                int generation = sFrameGeneration.get();
+                Matrix transform = getTransformationMatrix();
+                float[] transformKey = matrixValues(transform);
+                EncodedFrame cached = sEncodedFrame;
+                byte[] jpg;
+                if (cached != null && cached.matches(ENCODE_CAMERA1, generation, w, h, 0, transformKey)) {
+                    jpg = cached.jpeg;
+                    metrics.cacheHit();
+                    metrics.mark(CaptureMetrics.STAGE_ACQUIRE);
+                } else {
+                    Bitmap srcBmp = getCaptureBitmap(null, transform);
+                    metrics.mark(CaptureMetrics.STAGE_ACQUIRE);
+                    if (srcBmp == null) {
+                        Log.w(TAG, "No fake bitmap for Camera1 injection");
+                        return;
+                    }
+                    metrics.allocated(srcBmp.getAllocationByteCount());
+                    jpg = jpegBytes(srcBmp, w, h, JPEG_QUALITY, metrics);
+                    recycleQuietly(srcBmp);
+                    if (jpg.length > 0) {
+                        sEncodedFrame = new EncodedFrame(ENCODE_CAMERA1, generation, w, h, 0, transformKey, jpg);
+                    }
                 }
-                byte[] jpg = jpegBytes(srcBmp, w, h, JPEG_QUALITY);
-                recycleQuietly(srcBmp);
 
                 if (jpg.length > 0) {
-                    jpegCallback.onPictureTaken(jpg, cam);
+                    // Fresh header per capture; the shared encoded frame is never modified
+                    byte[] app1 = JpegExifSplicer.buildApp1(new JpegExifSplicer.ExifInfo(w, h));
+                    byte[] out = JpegExifSplicer.splice(jpg, app1);
+                    metrics.allocated(out.length);
+                    metrics.mark(CaptureMetrics.STAGE_WRITE);
+                    jpegCallback.onPictureTaken(out, cam);
+                    metrics.mark(CaptureMetrics.STAGE_CALLBACK);
+                    delivered = true;
                     Log.i(TAG, "SUCCESS: Injected JPEG into Camera1 callback " + w + "x" + h);
                 }
             }
@@ -655,12 +906,15 @@ public static void applyFlip(boolean horizontal, boolean vertical) {
             // Try with lower quality
             try {
                 if (jpegCallback != null) {
-                    Bitmap srcBmp = getFakeBitmap();
+                    Bitmap srcBmp = getCaptureBitmap(null, getTransformationMatrix());
                     if (srcBmp != null) {
-                        byte[] jpg = jpegBytes(srcBmp, 800, 600, 50); // Very low quality
+                        byte[] jpg = jpegBytes(srcBmp, 800, 600, 50, metrics); // Very low quality
                         recycleQuietly(srcBmp);
                         if (jpg.length > 0) {
+                            metrics.mark(CaptureMetrics.STAGE_WRITE);
                             jpegCallback.onPictureTaken(jpg, cam);
+                            metrics.mark(CaptureMetrics.STAGE_CALLBACK);
+                            delivered = true;
                         }
                     }
                 }
@@ -669,12 +923,13 @@ public static void applyFlip(boolean horizontal, boolean vertical) {
             }
         } catch (Throwable e) {
             Log.e(TAG, "Camera1 injection error", e);
+        } finally {
+            CaptureMetrics.end(metrics, delivered);
         }
     }
 
     // Hook Camera2 ImageReader
-    private static void hookCamera2() {
-        Log.d(TAG, "Installing Camera2 hooks...");
+    private static void hookCamera2(List<HookSpec> specs) {
         MethodHook acquireHook = new MethodHook() {
             @Override public void afterCall(CallFrame cf) {
                 Image img = (Image) cf.getResult();
@@ -693,17 +948,142 @@ public static void applyFlip(boolean horizontal, boolean vertical) {
                 }
             }
         };
-        try {
-            Class<?> ir = ImageReader.class;
-            Pine.hook(ir.getDeclaredMethod("acquireLatestImage"), acquireHook);
-            Pine.hook(ir.getDeclaredMethod("acquireNextImage"), acquireHook);
-        } catch (Throwable t) {
-            Log.e(TAG, "Camera2 hook failed", t);
+        specs.add(HookSpec.method(GROUP_CAMERA2, ImageReader.class, "acquireLatestImage", acquireHook)
+                .priority(HookSpec.PRIORITY_HIGH));
+        specs.add(HookSpec.method(GROUP_CAMERA2, ImageReader.class, "acquireNextImage", acquireHook)
+                .priority(HookSpec.PRIORITY_HIGH));
+
+        if (FakePreviewRenderer.isSupported()) {
+            hookCamera2Preview(specs);
+        }
+    }
+
+    // Swap Camera2 preview surfaces for decoys and paint the fake frame into the originals
+    private static void hookCamera2Preview(List<HookSpec> specs) {
+        // createCaptureSession(List<Surface>, StateCallback, Handler)
+        specs.add(HookSpec.method(GROUP_CAMERA2_PREVIEW, CAMERA_DEVICE_IMPL, "createCaptureSession", new MethodHook() {
+                @Override public void beforeCall(CallFrame cf) {
+                    @SuppressWarnings("unchecked")
+                    List<Surface> outputs = (List<Surface>) cf.args[0];
+                    if (outputs == null) return;
+                    List<Surface> swapped = new ArrayList<>(outputs.size());
+                    for (Surface s : outputs) {
+                        swapped.add(swapPreviewSurface(cf.thisObject, s));
+                    }
+                    cf.args[0] = swapped;
+                }
+            }, List.class, android.hardware.camera2.CameraCaptureSession.StateCallback.class, Handler.class));
+
+        // createCaptureSession(SessionConfiguration), used by CameraX on API 28+
+        specs.add(HookSpec.method(GROUP_CAMERA2_PREVIEW, CAMERA_DEVICE_IMPL, "createCaptureSession", new MethodHook() {
+                @Override public void beforeCall(CallFrame cf) {
+                    SessionConfiguration config = (SessionConfiguration) cf.args[0];
+                    if (config == null) return;
+                    List<OutputConfiguration> outputs =
+                            swapPreviewOutputs(cf.thisObject, config.getOutputConfigurations());
+                    if (outputs == null) return;
+                    SessionConfiguration swapped = new SessionConfiguration(
+                            config.getSessionType(), outputs, config.getExecutor(), config.getStateCallback());
+                    if (config.getInputConfiguration() != null) {
+                        swapped.setInputConfiguration(config.getInputConfiguration());
+                    }
+                    if (config.getSessionParameters() != null) {
+                        swapped.setSessionParameters(config.getSessionParameters());
+                    }
+                    cf.args[0] = swapped;
+                }
+            }, "android.hardware.camera2.params.SessionConfiguration").minSdk(Build.VERSION_CODES.P));
+
+        // createCaptureSessionByOutputConfigurations(List<OutputConfiguration>, StateCallback, Handler),
+        // used by CameraX on API 24-27
+        specs.add(HookSpec.method(GROUP_CAMERA2_PREVIEW, CAMERA_DEVICE_IMPL,
+                "createCaptureSessionByOutputConfigurations", new MethodHook() {
+                @Override public void beforeCall(CallFrame cf) {
+                    @SuppressWarnings("unchecked")
+                    List<OutputConfiguration> outputs = swapPreviewOutputs(cf.thisObject,
+                            (List<OutputConfiguration>) cf.args[0]);
+                    if (outputs != null) {
+                        cf.args[0] = outputs;
+                    }
+                }
+            }, List.class, android.hardware.camera2.CameraCaptureSession.StateCallback.class, Handler.class)
+                .minSdk(Build.VERSION_CODES.N));
+
+        // CaptureRequest.Builder targets still reference the original surfaces. Ungated, like
+        // close below: sessions swapped before the switch went off still need them.
+        MethodHook targetHook = new MethodHook() {
+            @Override public void beforeCall(CallFrame cf) {
+                Surface decoy = FakePreviewRenderer.decoyFor((Surface) cf.args[0]);
+                if (decoy != null) cf.args[0] = decoy;
+            }
+        };
+        specs.add(HookSpec.method(GROUP_CAMERA2_PREVIEW, CaptureRequest.Builder.class, "addTarget", targetHook,
+                Surface.class).ungated());
+        specs.add(HookSpec.method(GROUP_CAMERA2_PREVIEW, CaptureRequest.Builder.class, "removeTarget", targetHook,
+                Surface.class).ungated());
+
+        // Stop rendering once the device goes away
+        specs.add(HookSpec.method(GROUP_CAMERA2_PREVIEW, CAMERA_DEVICE_IMPL, "close", new MethodHook() {
+            @Override public void afterCall(CallFrame cf) {
+                FakePreviewRenderer.detachAll(cf.thisObject);
+            }
+        }).ungated());
+    }
+
+    private static Surface swapPreviewSurface(Object device, Surface s) {
+        if (!FakePreviewRenderer.isPreviewSurface(s)) return s;
+        Surface decoy = FakePreviewRenderer.attach(device, s);
+        return decoy != null ? decoy : s;
+    }
+
+    /**
+     * Outputs with preview surfaces replaced by decoys, or null if nothing was swapped.
+     * Only outputs whose every attribute can be carried over are swapped; anything else
+     * (physical camera, shared surfaces, sensor pixel modes, color space, rotation...) is
+     * left on the real surface rather than rebuilt without it.
+     */
+    private static List<OutputConfiguration> swapPreviewOutputs(Object device, List<OutputConfiguration> configs) {
+        if (configs == null) return null;
+        List<OutputConfiguration> outputs = new ArrayList<>(configs.size());
+        boolean changed = false;
+        for (OutputConfiguration oc : configs) {
+            Surface s = oc.getSurface();
+            OutputConfiguration replacement = null;
+            if (s != null && oc.equals(copyOutputAttributes(oc, s))) {
+                Surface decoy = swapPreviewSurface(device, s);
+                if (decoy != s) {
+                    replacement = copyOutputAttributes(oc, decoy);
+                }
+            }
+            if (replacement != null) {
+                outputs.add(replacement);
+                changed = true;
+            } else {
+                outputs.add(oc);
+            }
+        }
+        return changed ? outputs : null;
+    }
+
+    /**
+     * New configuration for surface with the public attributes of oc. Built on oc's own
+     * surface it equals oc exactly when no other attribute is set.
+     */
+    private static OutputConfiguration copyOutputAttributes(OutputConfiguration oc, Surface surface) {
+        OutputConfiguration copy = new OutputConfiguration(oc.getSurfaceGroupId(), surface);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            copy.setDynamicRangeProfile(oc.getDynamicRangeProfile());
+            copy.setStreamUseCase(oc.getStreamUseCase());
+            copy.setTimestampBase(oc.getTimestampBase());
+            copy.setMirrorMode(oc.getMirrorMode());
         }
+        return copy;
     }
 
     // JPEG injection with memory limits
     private static void injectJpeg(Image img) {
+        CaptureMetrics.Capture metrics = CaptureMetrics.begin(CaptureMetrics.PATH_CAMERA2_JPEG);
+        boolean delivered = false;
         try {
             Log.i(TAG, "INJECTING FAKE IMAGE INTO CAMERA2 JPEG");
             showNotification(true);
@@ -730,20 +1110,41 @@ public static void applyFlip(boolean horizontal, boolean vertical) {
             int w = Math.min(img.getWidth(), MAX_IMAGE_DIMENSION);
             int h = Math.min(img.getHeight(), MAX_IMAGE_DIMENSION);
 
-            Bitmap srcBmp = getFakeBitmap();
-            if (srcBmp == null) {
-                Log.w(TAG, "No fake bitmap for JPEG injection");
-                return;
-            }
-            Bitmap fitted = composeFitInto(srcBmp, w, h, 0xFF101010);
-            recycleQuietly(srcBmp);
-            if (fitted == null) return;
-
-            byte[] jpg = compressJpegToCapacity(fitted, JPEG_QUALITY, avail);
-            recycleQuietly(fitted);
-            if (jpg == null || jpg.length == 0) {
-                Log.w(TAG, "Failed to compress JPEG within available bytes");
-                return;
+            // Leave room for the EXIF header spliced in front of the encoded frame
+            byte[] app1 = JpegExifSplicer.buildApp1(new JpegExifSplicer.ExifInfo(w, h));
+            int budget = Math.max(1, avail - app1.length);
+
+            int generation = sFrameGeneration.get();
+            Matrix transform = getTransformationMatrix();
+            float[] transformKey = matrixValues(transform);
+            EncodedFrame cached = sEncodedFrame;
+            byte[] jpg;
+            if (cached != null && cached.matches(ENCODE_CAMERA2, generation, w, h, budget, transformKey)) {
+                jpg = cached.jpeg;
+                metrics.cacheHit();
+                metrics.mark(CaptureMetrics.STAGE_ACQUIRE);
+            } else {
+                Bitmap srcBmp = getCaptureBitmap(null, transform);
+                metrics.mark(CaptureMetrics.STAGE_ACQUIRE);
+                if (srcBmp == null) {
+                    Log.w(TAG, "No fake bitmap for JPEG injection");
+                    return;
+                }
+                metrics.allocated(srcBmp.getAllocationByteCount());
+                Bitmap fitted = composeFitInto(srcBmp, w, h, 0xFF101010);
+                recycleQuietly(srcBmp);
+                metrics.mark(CaptureMetrics.STAGE_FIT);
+                if (fitted == null) return;
+                metrics.allocated(fitted.getAllocationByteCount());
+
+                jpg = compressJpegToCapacity(fitted, JPEG_QUALITY, budget, metrics);
+                metrics.mark(CaptureMetrics.STAGE_ENCODE);
+                recycleQuietly(fitted);
+                if (jpg == null || jpg.length == 0) {
+                    Log.w(TAG, "Failed to compress JPEG within available bytes");
+                    return;
+                }
+                sEncodedFrame = new EncodedFrame(ENCODE_CAMERA2, generation, w, h, budget, transformKey, jpg);
             }
 
             // Write into buffer
@@ -752,23 +1153,31 @@ public static void applyFlip(boolean horizontal, boolean vertical) {
             dup.limit(origLimit);
             ByteBuffer slice = dup.slice();
 
-            int toWrite = Math.min(jpg.length, avail);
-            slice.put(jpg, 0, toWrite);
+            int toWrite;
+            int spliced = JpegExifSplicer.splicedLength(jpg, app1);
+            if (spliced > 0 && spliced <= avail) {
+                toWrite = JpegExifSplicer.writeSpliced(slice, jpg, app1);
+            } else {
+                toWrite = Math.min(jpg.length, avail);
+                slice.put(jpg, 0, toWrite);
+            }
+            metrics.mark(CaptureMetrics.STAGE_WRITE);
+            delivered = true;
 
             Log.i(TAG, "SUCCESS: Injected JPEG bytes=" + toWrite + " (avail=" + avail + ")");
         } catch (OutOfMemoryError oom) {
             Log.e(TAG, "OOM in Camera2 JPEG injection", oom);
         } catch (Throwable t) {
             Log.e(TAG, "injectJpeg error", t);
+        } finally {
+            CaptureMetrics.end(metrics, delivered);
         }
     }
 
     // Detect front/back camera openings
-    private static void hookCameraOpenForSelfieDetection() {
+    private static void hookCameraOpenForSelfieDetection(List<HookSpec> specs) {
         // Camera1 open(int)
-        try {
-            Method openInt = Camera.class.getDeclaredMethod("open", int.class);
-            Pine.hook(openInt, new MethodHook() {
+        specs.add(HookSpec.method(GROUP_CAMERA_OPEN, Camera.class, "open", new MethodHook() {
                 @Override public void afterCall(CallFrame cf) {
                     try {
                         int cameraId = (int) cf.args[0];
@@ -786,23 +1195,17 @@ public static void applyFlip(boolean horizontal, boolean vertical) {
                             }
                         } else {
                             sIsFrontSide = true;
+                            onFrameChanged();
                         }
                         Log.i(TAG, "Camera1 opened id=" + cameraId + " facing=" + (front ? "FRONT" : "BACK") + " -> selfieMode=" + sSelfieMode);
                     } catch (Throwable t) {
                         Log.w(TAG, "Failed to resolve Camera1 facing", t);
                     }
                 }
-            });
-        } catch (Throwable t) {
-            Log.w(TAG, "Hook Camera.open(int) not available", t);
-        }
+            }, int.class));
 
         // Camera2 openCamera
-        try {
-            Class<?> cmClass = Class.forName("android.hardware.camera2.CameraManager");
-            Class<?> cbClass = Class.forName("android.hardware.camera2.CameraDevice$StateCallback");
-            Method openCam = cmClass.getDeclaredMethod("openCamera", String.class, cbClass, android.os.Handler.class);
-            Pine.hook(openCam, new MethodHook() {
+        specs.add(HookSpec.method(GROUP_CAMERA_OPEN, "android.hardware.camera2.CameraManager", "openCamera", new MethodHook() {
                 @Override public void beforeCall(CallFrame cf) {
                     try {
                         String cameraId = (String) cf.args[0];
@@ -821,16 +1224,14 @@ public static void applyFlip(boolean horizontal, boolean vertical) {
                             }
                         } else {
                             sIsFrontSide = true;
+                            onFrameChanged();
                         }
                         Log.i(TAG, "Camera2 openCamera id=" + cameraId + " facing=" + (front ? "FRONT" : "BACK") + " -> selfieMode=" + sSelfieMode);
                     } catch (Throwable t) {
                         Log.w(TAG, "Failed to resolve Camera2 facing", t);
                     }
                 }
-            });
-        } catch (Throwable t) {
-            Log.w(TAG, "Camera2 openCamera hook failed", t);
-        }
+            }, String.class, "android.hardware.camera2.CameraDevice$StateCallback", android.os.Handler.class));
     }
 
     private static int getDisplayRotationDegrees() {
@@ -918,14 +1319,21 @@ public static void applyFlip(boolean horizontal, boolean vertical) {
         }
     }
 
-    private static byte[] jpegBytes(Bitmap bmp, int w, int h, int quality) {
+    private static byte[] jpegBytes(Bitmap bmp, int w, int h, int quality, CaptureMetrics.Capture metrics) {
         if (bmp == null || bmp.isRecycled()) return new byte[0];
         Bitmap out = scaleBitmap(bmp, w, h);
+        metrics.mark(CaptureMetrics.STAGE_FIT);
         if (out == null) return new byte[0];
+        metrics.allocated(out.getAllocationByteCount());
         try {
             ByteArrayOutputStream os = new ByteArrayOutputStream();
             out.compress(Bitmap.CompressFormat.JPEG, quality, os);
-            return os.toByteArray();
+            byte[] jpg = os.toByteArray();
+            metrics.encodeAttempt();
+            metrics.quality(quality);
+            metrics.allocated(jpg.length);
+            metrics.mark(CaptureMetrics.STAGE_ENCODE);
+            return jpg;
         } finally {
             recycleQuietly(out);
         }
@@ -946,26 +1354,35 @@ public static void applyFlip(boolean horizontal, boolean vertical) {
         }
     }
 
-    private static byte[] compressJpegToCapacity(Bitmap bmp, int startQuality, int capacity) {
+    private static byte[] compressJpegToCapacity(Bitmap bmp, int startQuality, int capacity,
+                                                 CaptureMetrics.Capture metrics) {
         int low = 30; // Start with lower quality
         int high = Math.max(30, Math.min(85, startQuality)); // Cap at 85
         byte[] best = null;
+        int bestQuality = -1;
 
-        byte[] trial = compressOnce(bmp, high);
-        if (trial != null && trial.length <= capacity) return trial;
+        byte[] trial = compressOnce(bmp, high, metrics);
+        if (trial != null && trial.length <= capacity) {
+            metrics.quality(high);
+            return trial;
+        }
 
         while (low <= high) {
             int mid = (low + high) / 2;
-            byte[] data = compressOnce(bmp, mid);
+            byte[] data = compressOnce(bmp, mid, metrics);
             if (data == null) break;
             if (data.length <= capacity) {
                 best = data;
+                bestQuality = mid;
                 low = mid + 1;
             } else {
                 high = mid - 1;
             }
         }
-        if (best != null) return best;
+        if (best != null) {
+            metrics.quality(bestQuality);
+            return best;
+        }
 
         if (trial == null) return null;
         if (trial.length <= capacity) return trial;
@@ -974,11 +1391,14 @@ public static void applyFlip(boolean horizontal, boolean vertical) {
         return out;
     }
 
-    private static byte[] compressOnce(Bitmap bmp, int quality) {
+    private static byte[] compressOnce(Bitmap bmp, int quality, CaptureMetrics.Capture metrics) {
         try {
+            metrics.encodeAttempt();
             ByteArrayOutputStream os = new ByteArrayOutputStream();
             bmp.compress(Bitmap.CompressFormat.JPEG, quality, os);
-            return os.toByteArray();
+            byte[] data = os.toByteArray();
+            metrics.allocated(data.length);
+            return data;
         } catch (Throwable t) {
             Log.w(TAG, "compressOnce failed at quality=" + quality, t);
             return null;
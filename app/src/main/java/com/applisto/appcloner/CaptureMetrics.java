@@ -0,0 +1,143 @@
+package com.applisto.appcloner;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Per-capture timing and memory instrumentation for CameraHook's injection paths.
+ *
+ * Each capture fills a {@link Capture} on its own thread and publishes it into a
+ * fixed-size ring with a single atomic increment; stage latencies are also folded
+ * into histograms. Both are exported as cursors through DefaultProvider.
+ */
+public final class CaptureMetrics {
+
+    public static final String PATH_CAMERA1 = "camera1";
+    public static final String PATH_CAMERA2_JPEG = "camera2_jpeg";
+
+    public static final int STAGE_ACQUIRE = 0;
+    public static final int STAGE_FIT = 1;
+    public static final int STAGE_ENCODE = 2;
+    public static final int STAGE_WRITE = 3;
+    // Time spent in the host app's own picture callback, kept apart from ours
+    public static final int STAGE_CALLBACK = 4;
+    private static final int STAGE_COUNT = 5;
+    private static final String[] STAGE_NAMES = {"acquire", "fit", "encode", "write", "callback"};
+
+    private static final int RING_SIZE = 128; // power of two
+    private static final AtomicReferenceArray<Capture> RING = new AtomicReferenceArray<>(RING_SIZE);
+    private static final AtomicLong CURSOR = new AtomicLong();
+
+    private static final LatencyHistogram[] STAGE_HISTOGRAMS = new LatencyHistogram[STAGE_COUNT];
+    private static final LatencyHistogram TOTAL_HISTOGRAM = new LatencyHistogram();
+    private static final LatencyHistogram BYTES_HISTOGRAM = new LatencyHistogram();
+    private static final LatencyHistogram RETRIES_HISTOGRAM = new LatencyHistogram();
+    private static final AtomicLong FAILURES = new AtomicLong();
+
+    static {
+        for (int i = 0; i < STAGE_COUNT; i++) STAGE_HISTOGRAMS[i] = new LatencyHistogram();
+    }
+
+    private CaptureMetrics() {}
+
+    /**
+     * Measurements for one capture. Not thread-safe: owned by the injecting thread until {@link #end}.
+     */
+    public static final class Capture {
+        final String path;
+        final long wallTimeMillis = System.currentTimeMillis();
+        final long startNanos = System.nanoTime();
+        final long[] stageNanos = new long[STAGE_COUNT];
+        long lastMarkNanos = startNanos;
+        long totalNanos;
+        long bytesAllocated;
+        int quality = -1;
+        int encodeAttempts;
+        boolean cacheHit;
+        boolean success;
+
+        Capture(String path) {
+            this.path = path;
+        }
+
+        /** Attribute the time since the previous mark to the given stage */
+        public void mark(int stage) {
+            long now = System.nanoTime();
+            stageNanos[stage] += now - lastMarkNanos;
+            lastMarkNanos = now;
+        }
+
+        public void allocated(long bytes) { bytesAllocated += bytes; }
+        public void encodeAttempt()      { encodeAttempts++; }
+        public void quality(int q)       { quality = q; }
+        public void cacheHit()           { cacheHit = true; }
+    }
+
+    public static Capture begin(String path) {
+        return new Capture(path);
+    }
+
+    public static void end(Capture c, boolean success) {
+        if (c == null) return;
+        c.success = success;
+        c.totalNanos = System.nanoTime() - c.startNanos;
+
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            if (c.stageNanos[i] > 0) STAGE_HISTOGRAMS[i].record(c.stageNanos[i] / 1000);
+        }
+        TOTAL_HISTOGRAM.record(c.totalNanos / 1000);
+        BYTES_HISTOGRAM.record(c.bytesAllocated);
+        RETRIES_HISTOGRAM.record(Math.max(0, c.encodeAttempts - 1));
+        if (!success) FAILURES.incrementAndGet();
+
+        RING.set((int) (CURSOR.getAndIncrement() & (RING_SIZE - 1)), c);
+    }
+
+    /**
+     * Aggregated histograms, one row per metric. Latencies are in microseconds.
+     */
+    public static Cursor queryHistograms() {
+        MatrixCursor cursor = new MatrixCursor(new String[]{
+                "metric", "count", "mean", "p50", "p90", "p99", "max", "buckets"});
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            addHistogramRow(cursor, STAGE_NAMES[i] + "_us", STAGE_HISTOGRAMS[i]);
+        }
+        addHistogramRow(cursor, "total_us", TOTAL_HISTOGRAM);
+        addHistogramRow(cursor, "bytes_allocated", BYTES_HISTOGRAM);
+        addHistogramRow(cursor, "encode_retries", RETRIES_HISTOGRAM);
+        cursor.addRow(new Object[]{"failures", FAILURES.get(), 0, 0, 0, 0, 0, ""});
+        return cursor;
+    }
+
+    static void addHistogramRow(MatrixCursor cursor, String name, LatencyHistogram h) {
+        cursor.addRow(new Object[]{
+                name, h.count(), h.mean(),
+                h.percentile(50), h.percentile(90), h.percentile(99),
+                h.max(), h.bucketsToString()});
+    }
+
+    /**
+     * The most recent captures (up to the ring size), newest first
+     */
+    public static Cursor querySamples() {
+        MatrixCursor cursor = new MatrixCursor(new String[]{
+                "time", "path", "success", "cache_hit",
+                "acquire_us", "fit_us", "encode_us", "write_us", "callback_us", "total_us",
+                "bytes_allocated", "quality", "encode_attempts"});
+        long end = CURSOR.get();
+        for (long i = end - 1; i >= 0 && i >= end - RING_SIZE; i--) {
+            Capture c = RING.get((int) (i & (RING_SIZE - 1)));
+            if (c == null) continue;
+            cursor.addRow(new Object[]{
+                    c.wallTimeMillis, c.path, c.success ? 1 : 0, c.cacheHit ? 1 : 0,
+                    c.stageNanos[STAGE_ACQUIRE] / 1000, c.stageNanos[STAGE_FIT] / 1000,
+                    c.stageNanos[STAGE_ENCODE] / 1000, c.stageNanos[STAGE_WRITE] / 1000,
+                    c.stageNanos[STAGE_CALLBACK] / 1000,
+                    c.totalNanos / 1000, c.bytesAllocated, c.quality, c.encodeAttempts});
+        }
+        return cursor;
+    }
+}
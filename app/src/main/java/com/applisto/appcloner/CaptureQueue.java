@@ -0,0 +1,226 @@
+package com.applisto.appcloner;
+
+import android.content.ContentResolver;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.List;
+
+/**
+ * Ordered queue of images left over from a multi-select pick.
+ *
+ * Verification flows ask for several captures in a row (front, back, selfie).
+ * FakeCameraActivity serves the first picked image and parks the rest here as URIs;
+ * only the head is decoded ahead on the image executor at prefetch priority, so at
+ * most one decoded bitmap waits in memory. FakeCameraAppSupport claims the head with
+ * poll() when a capture intent arrives and serves it without showing the picker again.
+ * Picks older than QUEUE_TTL_MS are dropped rather than served to an unrelated capture.
+ * The picker's read grant ends with the activity, so each queued URI takes a persistable
+ * grant (ACTION_OPEN_DOCUMENT results) that is given back once the pick is served or dropped.
+ */
+public final class CaptureQueue {
+    private static final String TAG = "CaptureQueue";
+
+    private static final int MAX_QUEUED = 4;
+    // A leftover pick belongs to the flow it was made for, not to a capture much later
+    private static final long QUEUE_TTL_MS = 5 * 60 * 1000;
+
+    private static final Object LOCK = new Object();
+    private static final ArrayDeque<Pick> QUEUE = new ArrayDeque<>();
+
+    private CaptureQueue() {}
+
+    /**
+     * One queued image, owned by the caller once returned from poll()
+     */
+    public static final class Pick {
+        final Uri uri;
+        final int maxDimension;
+        final long enqueuedAt;
+        private final ContentResolver resolver;
+        private Bitmap bitmap;    // guarded by this
+        private boolean released; // guarded by this
+        private boolean granted;  // guarded by this
+        private ImageProcessingExecutor.Task task;
+
+        Pick(ContentResolver resolver, Uri uri, int maxDimension, long enqueuedAt) {
+            this.resolver = resolver;
+            this.uri = uri;
+            this.maxDimension = maxDimension;
+            this.enqueuedAt = enqueuedAt;
+            try {
+                resolver.takePersistableUriPermission(uri, Intent.FLAG_GRANT_READ_URI_PERMISSION);
+                granted = true;
+            } catch (SecurityException e) {
+                // Not an ACTION_OPEN_DOCUMENT result; readable only while the grant lasts
+                Log.w(TAG, "No persistable grant for " + uri + ": " + e.getMessage());
+            }
+        }
+
+        private void releaseGrant() {
+            synchronized (this) {
+                if (!granted) return;
+                granted = false;
+            }
+            try {
+                resolver.releasePersistableUriPermission(uri, Intent.FLAG_GRANT_READ_URI_PERMISSION);
+            } catch (SecurityException e) {
+                Log.w(TAG, "Failed to release grant for " + uri, e);
+            }
+        }
+
+        /**
+         * Decoded bitmap (caller owns it), or null if it cannot be decoded.
+         * Blocks on a prefetch that is already running; one that has not started yet is
+         * cancelled and decoded inline, so a single executor thread cannot wait on itself.
+         * Call from a worker thread.
+         */
+        public Bitmap take() {
+            if (task != null && !task.cancel(false)) {
+                try {
+                    task.get();
+                } catch (Exception e) {
+                    Log.w(TAG, "Prefetch of " + uri + " failed", e);
+                }
+            }
+
+            Bitmap b;
+            synchronized (this) {
+                b = bitmap;
+                bitmap = null;
+                released = true;
+            }
+            if (b == null) {
+                b = decode(resolver, uri, maxDimension);
+            } else {
+                Log.d(TAG, "Serving prefetched " + uri);
+            }
+            releaseGrant();
+            return b;
+        }
+
+        /**
+         * Drop the pick unused; a prefetch still running recycles its result when done
+         */
+        public void release() {
+            ImageProcessingExecutor.cancel(task);
+            synchronized (this) {
+                released = true;
+                if (bitmap != null) {
+                    bitmap.recycle();
+                    bitmap = null;
+                }
+            }
+            releaseGrant();
+        }
+
+        void prefetch() {
+            task = ImageProcessingExecutor.submit("prefetch:" + uri,
+                    ImageProcessingExecutor.PRIORITY_PREFETCH, new Runnable() {
+                        @Override
+                        public void run() {
+                            synchronized (Pick.this) {
+                                if (released) return;
+                            }
+                            Bitmap b = decode(resolver, uri, maxDimension);
+                            synchronized (Pick.this) {
+                                if (released) {
+                                    if (b != null) b.recycle();
+                                } else {
+                                    bitmap = b;
+                                }
+                            }
+                        }
+                    });
+        }
+    }
+
+    /**
+     * Replace the queue with the given images, in order, and start decoding the first
+     */
+    public static void enqueue(ContentResolver resolver, List<Uri> uris, int maxDimension) {
+        clear();
+        long now = SystemClock.elapsedRealtime();
+        synchronized (LOCK) {
+            for (Uri uri : uris) {
+                if (QUEUE.size() >= MAX_QUEUED) {
+                    Log.w(TAG, "Queue full, dropping " + (uris.size() - MAX_QUEUED) + " picked images");
+                    break;
+                }
+                QUEUE.add(new Pick(resolver, uri, maxDimension, now));
+            }
+            if (!QUEUE.isEmpty()) {
+                QUEUE.peek().prefetch();
+            }
+            Log.i(TAG, "Queued " + QUEUE.size() + " images for following captures");
+        }
+    }
+
+    /**
+     * Number of fresh images still waiting to be served
+     */
+    public static int size() {
+        synchronized (LOCK) {
+            purgeStaleLocked();
+            return QUEUE.size();
+        }
+    }
+
+    /**
+     * Atomically claim the head of the queue, or null if nothing fresh is queued.
+     * Starts the prefetch of the next one. The caller must take() or release() the pick.
+     */
+    public static Pick poll() {
+        synchronized (LOCK) {
+            purgeStaleLocked();
+            Pick pick = QUEUE.poll();
+            Pick next = QUEUE.peek();
+            if (next != null && next.task == null) {
+                next.prefetch();
+            }
+            return pick;
+        }
+    }
+
+    /**
+     * Drop all queued images, cancelling pending decodes
+     */
+    public static void clear() {
+        synchronized (LOCK) {
+            for (Pick pick : QUEUE) {
+                pick.release();
+            }
+            QUEUE.clear();
+        }
+    }
+
+    private static void purgeStaleLocked() {
+        long now = SystemClock.elapsedRealtime();
+        while (!QUEUE.isEmpty() && now - QUEUE.peek().enqueuedAt > QUEUE_TTL_MS) {
+            Pick stale = QUEUE.poll();
+            Log.i(TAG, "Dropping stale pick " + stale.uri);
+            stale.release();
+        }
+    }
+
+    /**
+     * Decode bounded and scale to fit maxDimension; the CameraHook transform is applied at
+     * serve time since it may change while the image waits in the queue
+     */
+    private static Bitmap decode(ContentResolver resolver, Uri uri, int maxDimension) {
+        Bitmap decoded = FakeImageProcessor.decodeBounded(resolver, uri, maxDimension);
+        if (decoded == null) {
+            return null;
+        }
+        Bitmap fitted = FakeImageProcessor.render(decoded,
+                FakeImageProcessor.fitScale(decoded.getWidth(), decoded.getHeight(), maxDimension), null);
+        if (fitted != decoded) {
+            decoded.recycle();
+        }
+        return fitted;
+    }
+}
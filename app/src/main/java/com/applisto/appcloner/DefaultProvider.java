@@ -4,6 +4,12 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Process;
 import android.util.Log;
 import java.io.File;
 
@@ -11,8 +17,21 @@ public class DefaultProvider extends AbstractContentProvider {
 
     private static final String TAG = "DefaultProvider";
 
+    // Diagnostics paths served by query(), e.g. content://<authority>/capture_metrics
+    public static final String PATH_CAPTURE_METRICS = "capture_metrics";
+    public static final String PATH_CAPTURE_SAMPLES = "capture_samples";
+    public static final String PATH_EXECUTOR_METRICS = "executor_metrics";
+    public static final String PATH_LAUNCH_METRICS = "launch_metrics";
+    public static final String PATH_HOOK_REPORT = "hook_report";
+    public static final String PATH_HOOK_METRICS = "hook_metrics";
+
+    // call() methods: arg is the hook group, extras carry HookSwitches.EXTRA_ENABLED
+    public static final String METHOD_SET_HOOK_ENABLED = "set_hook_enabled";
+    public static final String METHOD_GET_HOOK_SWITCHES = "get_hook_switches";
+
     // Keep receiver reference to avoid GC
     private static DataExportReceiver sExportReceiver;
+    private static HookSwitches.Receiver sSwitchReceiver;
 
     // =============================
     // Broadcast Receiver for Data Export
@@ -73,10 +92,19 @@ public class DefaultProvider extends AbstractContentProvider {
         Log.i(TAG, "Package: " + context.getPackageName());
 
         try {
+            // Known hook lookups from earlier starts of this build
+            ResolutionCache.load(context);
+
             // 1. CRITICAL: EARLY CAMERA HOOK INSTALLATION - MUST BE FIRST
-            Log.i(TAG, "Installing camera hooks...");
-            CameraHook.install(context);
-            Log.i(TAG, "Camera hooks installed successfully");
+            if (HookInstaller.isLazy(context)) {
+                Log.i(TAG, "Arming camera hooks for first use...");
+                CameraHook.installOnFirstUse(context);
+                Log.i(TAG, "Camera hooks armed");
+            } else {
+                Log.i(TAG, "Installing camera hooks...");
+                CameraHook.install(context);
+                Log.i(TAG, "Camera hooks installed successfully");
+            }
 
             // 2. Fake camera app support for activity interception
             Log.i(TAG, "Setting up FakeCameraAppSupport...");
@@ -102,6 +130,19 @@ public class DefaultProvider extends AbstractContentProvider {
             context.registerReceiver(sExportReceiver, filter);
             Log.i(TAG, "Export receiver registered");
 
+            // 6. Register hook switch receiver
+            if (sSwitchReceiver == null) {
+                sSwitchReceiver = new HookSwitches.Receiver();
+            }
+            IntentFilter switchFilter = new IntentFilter(HookSwitches.ACTION_SET_HOOK_ENABLED);
+            // Exported: the receiver checks the sender's signature itself (EXTRA_AUTH)
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+                context.registerReceiver(sSwitchReceiver, switchFilter, Context.RECEIVER_EXPORTED);
+            } else {
+                context.registerReceiver(sSwitchReceiver, switchFilter);
+            }
+            Log.i(TAG, "Hook switch receiver registered");
+
             Log.i(TAG, "=== DEFAULT PROVIDER INITIALIZED SUCCESSFULLY ===");
             Log.i(TAG, "All hooks and services are now active");
             return true;
@@ -112,6 +153,70 @@ public class DefaultProvider extends AbstractContentProvider {
         }
     }
 
+    // =============================
+    // Diagnostics queries
+    // =============================
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        String path = uri != null ? uri.getLastPathSegment() : null;
+        if (path == null) {
+            return null;
+        }
+
+        switch (path) {
+            case PATH_CAPTURE_METRICS:
+                return CaptureMetrics.queryHistograms();
+            case PATH_CAPTURE_SAMPLES:
+                return CaptureMetrics.querySamples();
+            case PATH_EXECUTOR_METRICS:
+                return ImageProcessingExecutor.queryMetrics();
+            case PATH_LAUNCH_METRICS:
+                return LaunchTracer.query();
+            case PATH_HOOK_REPORT:
+                return HookInstaller.queryReport();
+            case PATH_HOOK_METRICS:
+                return HookInstaller.queryStats();
+            default:
+                Log.w(TAG, "Unknown query path: " + path);
+                return null;
+        }
+    }
+
+    // =============================
+    // Hook switches
+    // =============================
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        switch (method) {
+            case METHOD_SET_HOOK_ENABLED:
+                enforceHookControlCaller(method);
+                if (arg == null || extras == null || !extras.containsKey(HookSwitches.EXTRA_ENABLED)) {
+                    Log.w(TAG, METHOD_SET_HOOK_ENABLED + " needs a group and " + HookSwitches.EXTRA_ENABLED);
+                    return null;
+                }
+                HookSwitches.setEnabled(arg, extras.getBoolean(HookSwitches.EXTRA_ENABLED));
+                return HookSwitches.toBundle();
+            case METHOD_GET_HOOK_SWITCHES:
+                enforceHookControlCaller(method);
+                return HookSwitches.toBundle();
+            default:
+                return super.call(method, arg, extras);
+        }
+    }
+
+    /**
+     * Only this app or apps signed like it may touch the switches
+     */
+    private void enforceHookControlCaller(String method) {
+        Context context = getContext();
+        int uid = Binder.getCallingUid();
+        if (uid == Process.myUid() || context != null && HookSwitches.isTrustedCaller(context, uid)) {
+            return;
+        }
+        Log.w(TAG, "Rejected " + method + " from uid " + uid);
+        throw new SecurityException(method + " requires the caller to share this app's signature");
+    }
+
     // Optional: Clean up on process death (if needed)
     @Override
     public void shutdown() {
@@ -123,5 +228,10 @@ public class DefaultProvider extends AbstractContentProvider {
                 Log.d(TAG, "Export receiver unregistered");
             } catch (Exception ignored) {}
         }
+        if (context != null && sSwitchReceiver != null) {
+            try {
+                context.unregisterReceiver(sSwitchReceiver);
+            } catch (Exception ignored) {}
+        }
     }
 }
\ No newline at end of file
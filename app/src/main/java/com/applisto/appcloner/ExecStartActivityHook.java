@@ -1,12 +1,16 @@
 package com.applisto.appcloner;
 
 import android.app.Activity;
+import android.app.Fragment;
 import android.app.Instrumentation;
 import android.app.Instrumentation.ActivityResult;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Bundle;
 import android.os.IBinder;
+import android.os.Process;
+import android.os.UserHandle;
 import android.util.Log;
 
 import java.lang.reflect.Field;
@@ -14,18 +18,145 @@ import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Chain-of-responsibility hook around Instrumentation#execStartActivity.
+ * Interceptors (subclasses) run synchronously and may short-circuit a start;
+ * {@link StartObserver}s only get a snapshot afterwards, on a background thread.
  */
 public abstract class ExecStartActivityHook {
     private static final String TAG = "ExecStartActivityHook";
 
-    private static final List<ExecStartActivityHook> HOOKS = new ArrayList<>();
+    private static final ExecStartActivityHook[] NO_HOOKS = new ExecStartActivityHook[0];
+
+    // Immutable snapshot, replaced (never mutated) under the class lock by register/unregister
+    // so dispatch can read it without locking
+    private static volatile HookIndex sIndex = new HookIndex(NO_HOOKS);
     private static boolean sInstalled = false;
     private static Instrumentation sOriginalInstrumentation;
 
+    /**
+     * Return this from onExecStartActivity to swallow the start: the original is not invoked
+     * and the caller receives no immediate result, so the hook must deliver one itself.
+     */
+    protected static final ActivityResult CONSUMED = new ActivityResult(Activity.RESULT_CANCELED, null);
+
+    /**
+     * Which intents a hook wants to see. A hook is called if the intent matches any of its
+     * actions, target packages (explicit component or setPackage) or data schemes.
+     */
+    public static final class InterestFilter {
+        final Set<String> actions = new HashSet<>();
+        final Set<String> packages = new HashSet<>();
+        final Set<String> schemes = new HashSet<>();
+
+        public InterestFilter addAction(String action) {
+            actions.add(action);
+            return this;
+        }
+
+        public InterestFilter addPackage(String packageName) {
+            packages.add(packageName);
+            return this;
+        }
+
+        public InterestFilter addScheme(String scheme) {
+            schemes.add(scheme);
+            return this;
+        }
+
+        boolean matches(Intent intent) {
+            return actions.contains(intent.getAction())
+                    || packages.contains(targetPackage(intent))
+                    || schemes.contains(intent.getScheme());
+        }
+    }
+
+    /**
+     * Hooks plus lookup tables from filter value to the hooks interested in it (registration order)
+     */
+    private static final class HookIndex {
+        final ExecStartActivityHook[] all;
+        final InterestFilter[] filters;
+        final ExecStartActivityHook[] wildcard; // no filter: called for every start
+        final Map<String, ExecStartActivityHook[]> byAction;
+        final Map<String, ExecStartActivityHook[]> byPackage;
+        final Map<String, ExecStartActivityHook[]> byScheme;
+
+        HookIndex(ExecStartActivityHook[] hooks) {
+            all = hooks;
+            filters = new InterestFilter[hooks.length];
+            List<ExecStartActivityHook> any = new ArrayList<>();
+            Map<String, List<ExecStartActivityHook>> actions = new HashMap<>();
+            Map<String, List<ExecStartActivityHook>> packages = new HashMap<>();
+            Map<String, List<ExecStartActivityHook>> schemes = new HashMap<>();
+
+            for (int i = 0; i < hooks.length; i++) {
+                InterestFilter filter = hooks[i].getInterestFilter();
+                filters[i] = filter;
+                if (filter == null) {
+                    any.add(hooks[i]);
+                    continue;
+                }
+                addAll(actions, filter.actions, hooks[i]);
+                addAll(packages, filter.packages, hooks[i]);
+                addAll(schemes, filter.schemes, hooks[i]);
+            }
+
+            wildcard = any.toArray(NO_HOOKS);
+            byAction = freeze(actions);
+            byPackage = freeze(packages);
+            byScheme = freeze(schemes);
+        }
+
+        private static void addAll(Map<String, List<ExecStartActivityHook>> map, Set<String> keys,
+                                   ExecStartActivityHook hook) {
+            for (String key : keys) {
+                List<ExecStartActivityHook> list = map.get(key);
+                if (list == null) {
+                    list = new ArrayList<>();
+                    map.put(key, list);
+                }
+                list.add(hook);
+            }
+        }
+
+        private static Map<String, ExecStartActivityHook[]> freeze(Map<String, List<ExecStartActivityHook>> map) {
+            if (map.isEmpty()) {
+                return Collections.emptyMap();
+            }
+            Map<String, ExecStartActivityHook[]> frozen = new HashMap<>();
+            for (Map.Entry<String, List<ExecStartActivityHook>> e : map.entrySet()) {
+                frozen.put(e.getKey(), e.getValue().toArray(NO_HOOKS));
+            }
+            return frozen;
+        }
+    }
+
+    private static String targetPackage(Intent intent) {
+        ComponentName component = intent.getComponent();
+        return component != null ? component.getPackageName() : intent.getPackage();
+    }
+
+    /**
+     * Override to only be called for matching intents. Read once at registration;
+     * null (the default) means every activity start.
+     */
+    protected InterestFilter getInterestFilter() {
+        return null;
+    }
+
     /**
      * Arguments passed to execStartActivity
      */
@@ -37,6 +168,10 @@ public abstract class ExecStartActivityHook {
         public Intent intent;
         public int requestCode;
         public Bundle options;
+        // Set by the String/Fragment overloads: the embedded id the result is routed back to
+        public String resultWho;
+        // Set by the startActivityAsUser overloads
+        public UserHandle user;
         
         public ExecStartActivityArgs(Context who, IBinder contextThread, IBinder token,
                                       Activity target, Intent intent, int requestCode, Bundle options) {
@@ -58,8 +193,11 @@ public abstract class ExecStartActivityHook {
             return;
         }
         
-        if (!HOOKS.contains(hook)) {
-            HOOKS.add(hook);
+        ExecStartActivityHook[] hooks = sIndex.all;
+        if (indexOf(hooks, hook) < 0) {
+            ExecStartActivityHook[] updated = Arrays.copyOf(hooks, hooks.length + 1);
+            updated[hooks.length] = hook;
+            sIndex = new HookIndex(updated);
             Log.d(TAG, "Registered hook: " + hook.getClass().getSimpleName());
         }
         
@@ -72,10 +210,28 @@ public abstract class ExecStartActivityHook {
      * Unregister a hook
      */
     public static synchronized void unregister(ExecStartActivityHook hook) {
-        HOOKS.remove(hook);
+        ExecStartActivityHook[] hooks = sIndex.all;
+        int index = indexOf(hooks, hook);
+        if (index < 0) {
+            return;
+        }
+
+        ExecStartActivityHook[] updated = new ExecStartActivityHook[hooks.length - 1];
+        System.arraycopy(hooks, 0, updated, 0, index);
+        System.arraycopy(hooks, index + 1, updated, index, hooks.length - index - 1);
+        sIndex = new HookIndex(updated.length == 0 ? NO_HOOKS : updated);
         Log.d(TAG, "Unregistered hook: " + hook.getClass().getSimpleName());
     }
 
+    private static int indexOf(ExecStartActivityHook[] hooks, ExecStartActivityHook hook) {
+        for (int i = 0; i < hooks.length; i++) {
+            if (hooks[i] == hook) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     /**
      * Install our custom Instrumentation using reflection wrapper
      */
@@ -110,92 +266,375 @@ public abstract class ExecStartActivityHook {
      */
     protected abstract ActivityResult onExecStartActivity(ExecStartActivityArgs args);
 
+    // ---- Observers: off the critical path, cannot intercept ----
+
+    /**
+     * Immutable copy of one activity start, handed to observers after dispatch
+     */
+    public static final class StartSnapshot {
+        public final long timeNanos;
+        public final String caller;       // class of the starting Context
+        public final Intent intent;       // private copy, safe to keep
+        public final int requestCode;
+        public final String resultWho;
+        public final UserHandle user;
+        public final boolean intercepted; // an interceptor took the start
+
+        StartSnapshot(Context who, Intent intent, int requestCode, String resultWho,
+                      UserHandle user, boolean intercepted) {
+            this.timeNanos = System.nanoTime();
+            this.caller = who != null ? who.getClass().getName() : null;
+            this.intent = new Intent(intent);
+            this.requestCode = requestCode;
+            this.resultWho = resultWho;
+            this.user = user;
+            this.intercepted = intercepted;
+        }
+    }
+
+    /**
+     * Observes activity starts on a background thread. Use this instead of an
+     * ExecStartActivityHook for logging, analytics or prefetching, so the work
+     * never adds to the start latency.
+     */
+    public interface StartObserver {
+        void onStartObserved(StartSnapshot snapshot);
+    }
+
+    private static final class ObserverEntry {
+        final StartObserver observer;
+        final InterestFilter filter; // null: every start
+
+        ObserverEntry(StartObserver observer, InterestFilter filter) {
+            this.observer = observer;
+            this.filter = filter;
+        }
+    }
+
+    private static final ObserverEntry[] NO_OBSERVERS = new ObserverEntry[0];
+    private static volatile ObserverEntry[] sObservers = NO_OBSERVERS;
+
+    // Observers are best effort: a slow observer drops snapshots rather than queueing without bound
+    private static final int OBSERVER_QUEUE_DEPTH = 64;
+    private static final ThreadPoolExecutor OBSERVER_EXECUTOR = new ThreadPoolExecutor(
+        1, 1, 30, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(OBSERVER_QUEUE_DEPTH),
+        new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread t = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "StartObserver");
+                t.setDaemon(true);
+                return t;
+            }
+        },
+        new ThreadPoolExecutor.DiscardPolicy());
+
+    static {
+        OBSERVER_EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Register an observer for starts matching filter (null for all starts)
+     */
+    public static synchronized void registerObserver(StartObserver observer, InterestFilter filter) {
+        if (observer == null) {
+            return;
+        }
+        for (ObserverEntry e : sObservers) {
+            if (e.observer == observer) {
+                return;
+            }
+        }
+        ObserverEntry[] updated = Arrays.copyOf(sObservers, sObservers.length + 1);
+        updated[updated.length - 1] = new ObserverEntry(observer, filter);
+        sObservers = updated;
+        Log.d(TAG, "Registered observer: " + observer.getClass().getSimpleName());
+
+        if (!sInstalled) {
+            installInstrumentation();
+        }
+    }
+
+    public static synchronized void unregisterObserver(StartObserver observer) {
+        List<ObserverEntry> kept = new ArrayList<>();
+        for (ObserverEntry e : sObservers) {
+            if (e.observer != observer) {
+                kept.add(e);
+            }
+        }
+        sObservers = kept.isEmpty() ? NO_OBSERVERS : kept.toArray(NO_OBSERVERS);
+    }
+
+    /**
+     * Called on the starting thread after the interceptors ran. Costs one volatile read
+     * when nobody observes; otherwise one Intent copy, then everything else is async.
+     */
+    static void notifyObservers(Context who, Intent intent, int requestCode, String resultWho,
+                                UserHandle user, boolean intercepted) {
+        final ObserverEntry[] observers = sObservers;
+        if (observers.length == 0 || intent == null) {
+            return;
+        }
+
+        boolean any = false;
+        for (ObserverEntry e : observers) {
+            if (e.filter == null || e.filter.matches(intent)) {
+                any = true;
+                break;
+            }
+        }
+        if (!any) {
+            return;
+        }
+
+        final StartSnapshot snapshot = new StartSnapshot(who, intent, requestCode, resultWho, user, intercepted);
+        OBSERVER_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (ObserverEntry e : observers) {
+                    if (e.filter != null && !e.filter.matches(snapshot.intent)) {
+                        continue;
+                    }
+                    try {
+                        e.observer.onStartObserved(snapshot);
+                    } catch (Exception ex) {
+                        Log.e(TAG, "Observer " + e.observer.getClass().getSimpleName() + " threw exception", ex);
+                    }
+                }
+            }
+        });
+    }
+
     /**
      * Wrapper class that extends Instrumentation and intercepts method calls
      */
     private static class InstrumentationWrapper extends Instrumentation {
+        // Returned by dispatch when no hook took the start
+        private static final ActivityResult PASS = new ActivityResult(Activity.RESULT_CANCELED, null);
+
         private final Instrumentation mBase;
-        private Method mExecStartActivityMethod;
+
+        // Hidden overloads, resolved once; null where the platform does not have them
+        private final Method mActivityOverload;
+        private final Method mStringOverload;        // Fragment/embedded starts, API 23+
+        private final Method mFragmentOverload;      // android.app.Fragment starts, up to API 22
+        private final Method mActivityUserOverload;  // startActivityAsUser, API 17-22
+        private final Method mStringUserOverload;    // startActivityAsUser, API 23+
+        private static Field sFragmentWho;
 
         InstrumentationWrapper(Instrumentation base) {
             this.mBase = base;
-            
-            // Cache the execStartActivity method
+            mActivityOverload = findOverload(Activity.class, false);
+            mStringOverload = findOverload(String.class, false);
+            mFragmentOverload = findOverload(Fragment.class, false);
+            mActivityUserOverload = findOverload(Activity.class, true);
+            mStringUserOverload = findOverload(String.class, true);
+            if (mFragmentOverload != null) {
+                try {
+                    sFragmentWho = Fragment.class.getDeclaredField("mWho");
+                    sFragmentWho.setAccessible(true);
+                } catch (NoSuchFieldException e) {
+                    Log.w(TAG, "Fragment.mWho not found, fragment results go to the activity");
+                }
+            }
+        }
+
+        private static Method findOverload(Class<?> targetType, boolean withUser) {
             try {
-                // Try to find the method with standard signature
-                mExecStartActivityMethod = Instrumentation.class.getDeclaredMethod(
-                    "execStartActivity",
-                    Context.class, IBinder.class, IBinder.class, Activity.class,
-                    Intent.class, int.class, Bundle.class
-                );
-                mExecStartActivityMethod.setAccessible(true);
-                Log.d(TAG, "Found execStartActivity method");
+                Method m = withUser
+                    ? Instrumentation.class.getDeclaredMethod("execStartActivity",
+                        Context.class, IBinder.class, IBinder.class, targetType,
+                        Intent.class, int.class, Bundle.class, UserHandle.class)
+                    : Instrumentation.class.getDeclaredMethod("execStartActivity",
+                        Context.class, IBinder.class, IBinder.class, targetType,
+                        Intent.class, int.class, Bundle.class);
+                m.setAccessible(true);
+                Log.d(TAG, "Found execStartActivity(" + targetType.getSimpleName() + (withUser ? ", UserHandle)" : ")"));
+                return m;
             } catch (NoSuchMethodException e) {
-                Log.e(TAG, "Could not find execStartActivity method", e);
+                return null;
             }
         }
 
         /**
-         * This method exists in Instrumentation but is hidden/not in public API.
-         * We declare it here so our hooks can intercept it.
+         * These methods exist in Instrumentation but are hidden/not in public API.
+         * We declare them here so our hooks can intercept every start path.
          */
         public ActivityResult execStartActivity(
                 Context who, IBinder contextThread, IBinder token, Activity target,
                 Intent intent, int requestCode, Bundle options) {
+            ActivityResult result = dispatch(who, contextThread, token, target, null, intent, requestCode, options, null);
+            if (result != PASS) {
+                return result;
+            }
+            return invokeOriginal(mActivityOverload, who, contextThread, token, target, intent, requestCode, options);
+        }
 
-            Log.d(TAG, "execStartActivity intercepted: " + intent);
+        public ActivityResult execStartActivity(
+                Context who, IBinder contextThread, IBinder token, String target,
+                Intent intent, int requestCode, Bundle options) {
+            ActivityResult result = dispatch(who, contextThread, token, null, target, intent, requestCode, options, null);
+            if (result != PASS) {
+                return result;
+            }
+            return invokeOriginal(mStringOverload, who, contextThread, token, target, intent, requestCode, options);
+        }
+
+        @SuppressWarnings("deprecation")
+        public ActivityResult execStartActivity(
+                Context who, IBinder contextThread, IBinder token, Fragment target,
+                Intent intent, int requestCode, Bundle options) {
+            ActivityResult result = dispatch(who, contextThread, token, null, fragmentWho(target),
+                intent, requestCode, options, null);
+            if (result != PASS) {
+                return result;
+            }
+            return invokeOriginal(mFragmentOverload, who, contextThread, token, target, intent, requestCode, options);
+        }
+
+        public ActivityResult execStartActivity(
+                Context who, IBinder contextThread, IBinder token, Activity target,
+                Intent intent, int requestCode, Bundle options, UserHandle user) {
+            ActivityResult result = dispatch(who, contextThread, token, target, null, intent, requestCode, options, user);
+            if (result != PASS) {
+                return result;
+            }
+            return invokeOriginal(mActivityUserOverload, who, contextThread, token, target, intent, requestCode, options, user);
+        }
+
+        public ActivityResult execStartActivity(
+                Context who, IBinder contextThread, IBinder token, String resultWho,
+                Intent intent, int requestCode, Bundle options, UserHandle user) {
+            ActivityResult result = dispatch(who, contextThread, token, null, resultWho, intent, requestCode, options, user);
+            if (result != PASS) {
+                return result;
+            }
+            return invokeOriginal(mStringUserOverload, who, contextThread, token, resultWho, intent, requestCode, options, user);
+        }
+
+        /**
+         * Run the interceptors, record launch timing and queue observers for one start.
+         * Returns PASS if no interceptor took it, otherwise what the overload should return.
+         */
+        private static ActivityResult dispatch(Context who, IBinder contextThread, IBinder token,
+                                               Activity target, String resultWho, Intent intent,
+                                               int requestCode, Bundle options, UserHandle user) {
+            long start = System.nanoTime();
+            ActivityResult result = runInterceptors(who, contextThread, token, target, resultWho,
+                intent, requestCode, options, user);
+            LaunchTracer.onStartRequested(who, intent, start, System.nanoTime() - start, result == PASS);
+            notifyObservers(who, intent, requestCode, resultWho, user, result != PASS);
+            return result;
+        }
+
+        private static ActivityResult runInterceptors(Context who, IBinder contextThread, IBinder token,
+                                                      Activity target, String resultWho, Intent intent,
+                                                      int requestCode, Bundle options, UserHandle user) {
+            // Pick the interested hooks from the current snapshot; no lock, so a slow hook
+            // never blocks other starts, and an unrelated intent costs a few map lookups
+            HookIndex index = sIndex;
+            ExecStartActivityHook[] hooks = null;
+            int matched = 0;
+            if (intent != null) {
+                ExecStartActivityHook[] byAction = index.byAction.get(intent.getAction());
+                ExecStartActivityHook[] byPackage = index.byPackage.get(targetPackage(intent));
+                ExecStartActivityHook[] byScheme = index.byScheme.get(intent.getScheme());
+                if (index.wildcard.length > 0) { hooks = index.wildcard; matched++; }
+                if (byAction != null)  { hooks = byAction;  matched++; }
+                if (byPackage != null) { hooks = byPackage; matched++; }
+                if (byScheme != null)  { hooks = byScheme;  matched++; }
+            }
+            boolean merge = matched > 1;
+
+            if (hooks == null) {
+                return PASS;
+            }
 
             // Create args object
             ExecStartActivityArgs args = new ExecStartActivityArgs(
                 who, contextThread, token, target, intent, requestCode, options
             );
+            args.resultWho = resultWho;
+            args.user = user;
 
-            // Chain through hooks
-            synchronized (ExecStartActivityHook.class) {
-                for (ExecStartActivityHook hook : HOOKS) {
-                    try {
-                        ActivityResult result = hook.onExecStartActivity(args);
-                        if (result != null) {
-                            Log.d(TAG, "Hook " + hook.getClass().getSimpleName() + " intercepted intent");
-                            return result;
-                        }
-                    } catch (Exception e) {
-                        Log.e(TAG, "Hook " + hook.getClass().getSimpleName() + " threw exception", e);
+            // Several lists matched: walk all hooks in registration order, skipping uninterested ones
+            if (merge) {
+                hooks = index.all;
+            }
+            for (int i = 0; i < hooks.length; i++) {
+                ExecStartActivityHook hook = hooks[i];
+                if (merge && index.filters[i] != null && !index.filters[i].matches(intent)) {
+                    continue;
+                }
+                try {
+                    ActivityResult result = hook.onExecStartActivity(args);
+                    if (result != null) {
+                        Log.d(TAG, "Hook " + hook.getClass().getSimpleName() + " intercepted intent");
+                        return result == CONSUMED ? null : result;
                     }
+                } catch (Exception e) {
+                    Log.e(TAG, "Hook " + hook.getClass().getSimpleName() + " threw exception", e);
                 }
             }
+            return PASS;
+        }
 
-            // No hook handled it, call original method
-            return invokeOriginalExecStartActivity(who, contextThread, token, target, intent, requestCode, options);
+        /**
+         * mWho of a platform Fragment, which is what results are routed back by
+         */
+        @SuppressWarnings("deprecation")
+        private static String fragmentWho(Fragment fragment) {
+            if (fragment == null || sFragmentWho == null) {
+                return null;
+            }
+            try {
+                return (String) sFragmentWho.get(fragment);
+            } catch (Exception e) {
+                return null;
+            }
         }
 
         /**
-         * Invoke the original execStartActivity using reflection
+         * Invoke the original overload using the cached reflective handle
          */
-        private ActivityResult invokeOriginalExecStartActivity(
-                Context who, IBinder contextThread, IBinder token, Activity target,
-                Intent intent, int requestCode, Bundle options) {
-            
-            if (mExecStartActivityMethod == null) {
-                Log.e(TAG, "execStartActivity method not available");
+        private ActivityResult invokeOriginal(Method method, Object... args) {
+            if (method == null) {
+                Log.e(TAG, "execStartActivity overload not available");
+                onStartFailed(args);
                 return null;
             }
 
             try {
-                Object result = mExecStartActivityMethod.invoke(
-                    mBase, who, contextThread, token, target, intent, requestCode, options
-                );
-                return (ActivityResult) result;
+                return (ActivityResult) method.invoke(mBase, args);
             } catch (Exception e) {
                 Log.e(TAG, "Failed to invoke original execStartActivity", e);
+                onStartFailed(args);
                 return null;
             }
         }
 
+        // Every overload passes the Intent once in args
+        private static void onStartFailed(Object[] args) {
+            for (Object arg : args) {
+                if (arg instanceof Intent) {
+                    LaunchTracer.onStartFailed((Intent) arg);
+                    return;
+                }
+            }
+        }
+
         // Delegate all other methods to base
         @Override
         public void callActivityOnCreate(Activity activity, Bundle bundle) {
+            long start = System.nanoTime();
             mBase.callActivityOnCreate(activity, bundle);
+            LaunchTracer.onCreated(activity, System.nanoTime() - start);
         }
 
         @Override
@@ -211,6 +650,7 @@ public abstract class ExecStartActivityHook {
         @Override
         public void callActivityOnResume(Activity activity) {
             mBase.callActivityOnResume(activity);
+            LaunchTracer.onResumed(activity);
         }
 
         @Override
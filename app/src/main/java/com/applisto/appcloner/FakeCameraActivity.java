@@ -1,6 +1,10 @@
 package com.applisto.appcloner;
 
 import android.app.Activity;
+import android.app.AlertDialog;
+import android.content.ClipData;
+import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
@@ -10,26 +14,64 @@ import android.os.Build;
 import android.os.Bundle;
 import android.provider.MediaStore;
 import android.util.Log;
+import android.util.TypedValue;
+import android.view.Gravity;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.ImageView;
+import android.widget.LinearLayout;
+import android.widget.TextView;
 import android.widget.Toast;
 
-import java.io.ByteArrayOutputStream;
-import java.io.InputStream;
+import java.io.File;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
 
 public class FakeCameraActivity extends Activity {
     private static final String TAG = "FakeCameraActivity";
     private static final int REQ_PICK_IMAGE = 1001;
     private static final int MAX_IMAGE_SIZE = 2048; // Max dimension
 
+    // What the activity is waiting for; saved so a recreated instance picks up from there
+    private static final String STATE_KEY = "state";
+    private static final String STATE_OPEN_DOCUMENT = "used_open_document";
+    private static final int STATE_CHOOSER = 1;    // loading or showing the recent images
+    private static final int STATE_PICKER = 2;     // picker result pending
+    private static final int STATE_PROCESSING = 3; // selection being delivered
+
     private String cameraMode;
     private boolean usedOpenDocument;
     private boolean isFakeCameraAppMode;
     private boolean isVideoCapture;
     private Uri outputUri;
+    private String sessionToken;
+    private Handoff handoff;
+    private AlertDialog recentDialog;
+    private int state;
+
+    /**
+     * Work in flight, retained across a configuration change so the task keeps running
+     * and its result reaches the instance that is actually showing
+     */
+    private static final class Handoff {
+        volatile FakeCameraActivity host;
+        ImageProcessingExecutor.Task task;
+        // Loaded recent images, to show the chooser again without reloading
+        List<RecentImageStore.Entry> entries;
+        List<Bitmap> thumbnails;
+    }
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
+        Object retained = getLastNonConfigurationInstance();
+        handoff = retained instanceof Handoff ? (Handoff) retained : new Handoff();
+        handoff.host = this;
+
         // Ensure CameraHook is installed
         try {
             CameraHook.install(getApplicationContext());
@@ -44,43 +86,218 @@ public class FakeCameraActivity extends Activity {
             isVideoCapture = intent.getBooleanExtra("is_video_capture", false);
             cameraMode = intent.getStringExtra("camera_mode");
             outputUri = intent.getParcelableExtra(MediaStore.EXTRA_OUTPUT);
+            sessionToken = intent.getStringExtra(FakeCameraAppSupport.EXTRA_SESSION_TOKEN);
 
             Log.d(TAG, "Started with mode=" + cameraMode + ", video=" + isVideoCapture + ", uri=" + outputUri);
         }
 
-        if (isVideoCapture) {
-            // For now, video capture is not supported
-            Toast.makeText(this, "Video capture not yet supported", Toast.LENGTH_SHORT).show();
-            setResult(RESULT_CANCELED);
-            finish();
+        if (savedInstanceState != null) {
+            restoreState(savedInstanceState, retained != null);
             return;
         }
 
-        // Launch image picker
-        launchImagePicker();
+        if (isVideoCapture) {
+            // Launch video clip picker
+            launchImagePicker();
+        } else {
+            // Offer recently used images first, the picker is one tap away
+            showRecentOrPicker();
+        }
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putInt(STATE_KEY, state);
+        outState.putBoolean(STATE_OPEN_DOCUMENT, usedOpenDocument);
     }
 
     /**
-     * Launch the appropriate image picker
+     * Continue after recreation. A pending picker result is delivered to this instance and
+     * retained work reports to it through the handoff; only the chooser must be shown
+     * again. Work lost with the process cannot be resumed, so the capture is cancelled.
+     */
+    private void restoreState(Bundle savedInstanceState, boolean retained) {
+        state = savedInstanceState.getInt(STATE_KEY);
+        usedOpenDocument = savedInstanceState.getBoolean(STATE_OPEN_DOCUMENT);
+        Log.d(TAG, "Restored in state " + state + " (retained=" + retained + ")");
+
+        switch (state) {
+            case STATE_CHOOSER:
+                if (!retained) {
+                    showRecentOrPicker();
+                } else if (handoff.entries != null) {
+                    showRecentChooser(handoff.entries, handoff.thumbnails);
+                }
+                // else the list is still loading and will be shown on this instance
+                break;
+            case STATE_PROCESSING:
+                if (!retained) {
+                    cancelCapture();
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Load the recent-image thumbnails off the UI thread, then show the chooser
+     * (or go straight to the picker if there is nothing stored yet)
+     */
+    private void showRecentOrPicker() {
+        state = STATE_CHOOSER;
+        final Context app = getApplicationContext();
+        handoff.task = ImageProcessingExecutor.submit("recent:list",
+                ImageProcessingExecutor.PRIORITY_INTERACTIVE, new Runnable() {
+                    @Override
+                    public void run() {
+                        final List<RecentImageStore.Entry> entries = RecentImageStore.list(app);
+                        final List<Bitmap> thumbnails = new ArrayList<>();
+                        for (RecentImageStore.Entry entry : entries) {
+                            thumbnails.add(BitmapFactory.decodeFile(entry.thumbnail.getPath()));
+                        }
+                        runOnUiThread(new Runnable() {
+                            @Override
+                            public void run() {
+                                FakeCameraActivity host = handoff.host;
+                                if (host.isFinishing()) return;
+                                if (entries.isEmpty()) {
+                                    host.launchImagePicker();
+                                } else {
+                                    host.showRecentChooser(entries, thumbnails);
+                                }
+                            }
+                        });
+                    }
+                });
+        if (handoff.task == null) {
+            launchImagePicker();
+        }
+    }
+
+    private void showRecentChooser(final List<RecentImageStore.Entry> entries, final List<Bitmap> thumbnails) {
+        final int pad = (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, 8,
+                getResources().getDisplayMetrics());
+        final int size = pad * 8;
+        final DateFormat dateFormat = DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT);
+        handoff.entries = entries;
+        handoff.thumbnails = thumbnails;
+
+        BaseAdapter adapter = new BaseAdapter() {
+            @Override public int getCount() { return entries.size(); }
+            @Override public Object getItem(int position) { return entries.get(position); }
+            @Override public long getItemId(int position) { return position; }
+
+            @Override
+            public View getView(int position, View convertView, ViewGroup parent) {
+                LinearLayout row = (LinearLayout) convertView;
+                if (row == null) {
+                    row = new LinearLayout(FakeCameraActivity.this);
+                    row.setOrientation(LinearLayout.HORIZONTAL);
+                    row.setGravity(Gravity.CENTER_VERTICAL);
+                    row.setPadding(pad * 2, pad, pad * 2, pad);
+                    ImageView image = new ImageView(FakeCameraActivity.this);
+                    image.setScaleType(ImageView.ScaleType.CENTER_CROP);
+                    row.addView(image, new LinearLayout.LayoutParams(size, size));
+                    TextView text = new TextView(FakeCameraActivity.this);
+                    text.setPadding(pad * 2, 0, 0, 0);
+                    row.addView(text);
+                }
+                ((ImageView) row.getChildAt(0)).setImageBitmap(thumbnails.get(position));
+                File file = entries.get(position).image;
+                ((TextView) row.getChildAt(1)).setText(dateFormat.format(new Date(file.lastModified())));
+                return row;
+            }
+        };
+
+        recentDialog = new AlertDialog.Builder(this)
+                .setTitle("Recent images")
+                .setAdapter(adapter, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        onRecentSelected(entries.get(which));
+                    }
+                })
+                .setPositiveButton("Browse", new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        launchImagePicker();
+                    }
+                })
+                .setOnCancelListener(new DialogInterface.OnCancelListener() {
+                    @Override
+                    public void onCancel(DialogInterface dialog) {
+                        cancelCapture();
+                    }
+                })
+                .show();
+    }
+
+    /**
+     * Serve a stored image: it is already normalized, so this is a local file read
+     * (or byte passthrough) with no picker and no provider round trip
+     */
+    private void onRecentSelected(RecentImageStore.Entry entry) {
+        RecentImageStore.touch(getApplicationContext(), entry.key);
+        final Uri uri = Uri.fromFile(entry.image);
+        Log.i(TAG, "Recent image selected: " + entry.key);
+        state = STATE_PROCESSING;
+        handoff.entries = null;
+        handoff.thumbnails = null;
+        handoff.task = ImageProcessingExecutor.submit("recent:" + entry.key,
+                ImageProcessingExecutor.PRIORITY_INTERACTIVE, new Runnable() {
+                    @Override
+                    public void run() {
+                        processSelectedImage(uri, false);
+                    }
+                });
+        if (handoff.task == null) {
+            handleError("Image processing is busy, please try again");
+        }
+    }
+
+    private void cancelCapture() {
+        if (isFakeCameraAppMode) {
+            FakeCameraAppSupport.onCaptureCancelled(sessionToken);
+        } else {
+            setResult(RESULT_CANCELED);
+        }
+        finish();
+    }
+
+    /**
+     * Launch the appropriate image picker, or a video picker for ACTION_VIDEO_CAPTURE
      */
     private void launchImagePicker() {
+        state = STATE_PICKER;
+        handoff.entries = null;
+        handoff.thumbnails = null;
         try {
             Intent pickIntent;
+            String type = isVideoCapture ? "video/*" : "image/*";
 
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
                 // Use ACTION_OPEN_DOCUMENT for newer Android versions
                 pickIntent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
                 pickIntent.addCategory(Intent.CATEGORY_OPENABLE);
-                pickIntent.setType("image/*");
+                pickIntent.setType(type);
                 usedOpenDocument = true;
             } else {
                 // Fallback to ACTION_PICK for older versions
                 pickIntent = new Intent(Intent.ACTION_PICK);
-                pickIntent.setType("image/*");
-                pickIntent.setData(MediaStore.Images.Media.EXTERNAL_CONTENT_URI);
+                pickIntent.setType(type);
+                pickIntent.setData(isVideoCapture
+                        ? MediaStore.Video.Media.EXTERNAL_CONTENT_URI
+                        : MediaStore.Images.Media.EXTERNAL_CONTENT_URI);
                 usedOpenDocument = false;
             }
 
+            // Extra picks are queued and serve the following capture intents
+            if (isFakeCameraAppMode && !isVideoCapture && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+                pickIntent.putExtra(Intent.EXTRA_ALLOW_MULTIPLE, true);
+            }
+
             // Add hint for camera mode if available
             if (cameraMode != null) {
                 pickIntent.putExtra("camera_mode_hint", cameraMode);
@@ -109,44 +326,61 @@ public class FakeCameraActivity extends Activity {
 
         if (resultCode != RESULT_OK || data == null) {
             Log.w(TAG, "User cancelled or no data returned");
-
-            if (isFakeCameraAppMode) {
-                FakeCameraAppSupport.onImageSelected(null);
-            } else {
-                setResult(RESULT_CANCELED);
-            }
-            finish();
+            cancelCapture();
             return;
         }
 
-        // Process selected image in background
-        final Uri selectedUri = data.getData();
+        // Process selected image in background; further selections go to the capture queue
+        final Uri selectedUri = queueExtraSelections(data);
         if (selectedUri == null) {
             Log.e(TAG, "No URI in result data");
             handleError("No image selected");
             return;
         }
 
-        Log.i(TAG, "Image selected: " + selectedUri);
-
-        // Process image in background thread
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                processSelectedImage(selectedUri);
-            }
-        }).start();
+        Log.i(TAG, (isVideoCapture ? "Video" : "Image") + " selected: " + selectedUri);
+
+        // Process on the shared image executor; cancelled if we get destroyed first
+        state = STATE_PROCESSING;
+        handoff.task = ImageProcessingExecutor.submit("pick:" + selectedUri,
+                ImageProcessingExecutor.PRIORITY_INTERACTIVE, new Runnable() {
+                    @Override
+                    public void run() {
+                        if (isVideoCapture) {
+                            processSelectedVideo(selectedUri);
+                        } else {
+                            // Picked (not re-selected): keep a copy for the recent list
+                            processSelectedImage(selectedUri, true);
+                        }
+                    }
+                });
+        if (handoff.task == null) {
+            handleError("Image processing is busy, please try again");
+        }
     }
 
     /**
-     * Process the selected image (load, transform, deliver)
+     * Process the selected image (load, transform, deliver). With remember, a normalized
+     * copy goes to RecentImageStore; the copy is taken here, before delivery finishes the
+     * activity and ends the picker's read grant.
      */
-    private void processSelectedImage(Uri uri) {
+    private void processSelectedImage(Uri uri, boolean remember) {
         Bitmap bitmap = null;
 
         try {
-            // Load bitmap from URI
-            bitmap = loadBitmapFromUri(uri);
+            // Untouched JPEG that already fits: hand the bytes over without decode/re-encode
+            if (tryPassthrough(uri, remember)) {
+                return;
+            }
+
+            // Load bitmap from URI, sampled down to what the result actually needs
+            boolean thumbnailOnly = outputUri == null;
+            if (remember && thumbnailOnly) {
+                // The thumbnail decode is too small to keep; snapshot the source instead
+                RecentImageStore.remember(getApplicationContext(), uri, MAX_IMAGE_SIZE);
+            }
+            bitmap = loadBitmapFromUri(uri, thumbnailOnly
+                    ? FakeImageProcessor.THUMBNAIL_DECODE_DIMENSION : MAX_IMAGE_SIZE);
 
             if (bitmap == null) {
                 handleError("Failed to load image");
@@ -155,20 +389,36 @@ public class FakeCameraActivity extends Activity {
 
             Log.d(TAG, "Loaded bitmap: " + bitmap.getWidth() + "x" + bitmap.getHeight());
 
-            // Scale down if too large
-            bitmap = scaleBitmapIfNeeded(bitmap);
+            if (remember && !thumbnailOnly) {
+                RecentImageStore.remember(getApplicationContext(), bitmap, MAX_IMAGE_SIZE);
+            }
+
+            if (Thread.currentThread().isInterrupted()) {
+                Log.d(TAG, "Processing cancelled after decode");
+                return;
+            }
 
-            // Apply transformations from CameraHook
-            bitmap = applyHookTransformations(bitmap);
+            // One fused render: scale down (to thumbnail size if the caller only gets the
+            // inline "data" extra) and apply the CameraHook transform in a single draw
+            float scale = outputUri == null
+                    ? FakeImageProcessor.thumbnailScale(bitmap.getWidth(), bitmap.getHeight())
+                    : FakeImageProcessor.fitScale(bitmap.getWidth(), bitmap.getHeight(), MAX_IMAGE_SIZE);
+            bitmap = renderForCapture(bitmap, scale);
+
+            if (Thread.currentThread().isInterrupted()) {
+                Log.d(TAG, "Processing cancelled before delivery");
+                return;
+            }
 
             // Deliver result
             if (isFakeCameraAppMode) {
-                // Let FakeCameraAppSupport handle delivery
-                FakeCameraAppSupport.onImageSelected(bitmap);
+                // Let FakeCameraAppSupport handle delivery; the bitmap is already transformed
+                FakeCameraAppSupport.onImageSelected(sessionToken, bitmap, true);
                 finishOnUiThread();
             } else {
-                // Direct mode: deliver result ourselves
+                // Direct mode: deliver result ourselves; deliverResult owns the bitmap now
                 deliverResult(bitmap);
+                bitmap = null;
             }
 
         } catch (Exception e) {
@@ -183,131 +433,192 @@ public class FakeCameraActivity extends Activity {
     }
 
     /**
-     * Load bitmap from URI with proper error handling
+     * Returns the first selected URI and queues any others (multi-select) for later captures
      */
-    private Bitmap loadBitmapFromUri(Uri uri) {
-        InputStream input = null;
-        try {
-            input = getContentResolver().openInputStream(uri);
-            if (input == null) {
-                Log.e(TAG, "Failed to open input stream for URI: " + uri);
-                return null;
-            }
-
-            // Decode bitmap
-            BitmapFactory.Options options = new BitmapFactory.Options();
-            options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+    private Uri queueExtraSelections(Intent data) {
+        Uri first = data.getData();
+        ClipData clip = data.getClipData();
+        if (clip == null) {
+            return first;
+        }
 
-            Bitmap bitmap = BitmapFactory.decodeStream(input, null, options);
+        List<Uri> rest = new ArrayList<>();
+        for (int i = 0; i < clip.getItemCount(); i++) {
+            Uri uri = clip.getItemAt(i).getUri();
+            if (uri == null) continue;
+            if (first == null) {
+                first = uri;
+            } else if (!uri.equals(first)) {
+                rest.add(uri);
+            }
+        }
+        if (!rest.isEmpty()) {
+            CaptureQueue.enqueue(getApplicationContext().getContentResolver(), rest, MAX_IMAGE_SIZE);
+        }
+        return first;
+    }
 
-            if (bitmap == null) {
-                Log.e(TAG, "BitmapFactory returned null for URI: " + uri);
+    /**
+     * Stream the picked clip into EXTRA_OUTPUT (channel transfer, constant memory) and deliver.
+     * Without EXTRA_OUTPUT the picked URI itself is returned, like a camera app returning
+     * the MediaStore entry it recorded into.
+     */
+    private void processSelectedVideo(Uri uri) {
+        try {
+            Uri resultUri = uri;
+            if (outputUri != null) {
+                long start = System.nanoTime();
+                long bytes = FakeImageProcessor.copyUri(getContentResolver(), uri, outputUri);
+                Log.i(TAG, "Copied " + bytes + " byte clip to " + outputUri + " in "
+                        + (System.nanoTime() - start) / 1000000 + " ms");
+                resultUri = outputUri;
             }
 
-            return bitmap;
+            if (Thread.currentThread().isInterrupted()) {
+                Log.d(TAG, "Video copy cancelled");
+                return;
+            }
 
-        } catch (Exception e) {
-            Log.e(TAG, "Exception loading bitmap from URI: " + uri, e);
-            return null;
-        } finally {
-            if (input != null) {
-                try {
-                    input.close();
-                } catch (Exception ignored) {}
+            if (isFakeCameraAppMode) {
+                FakeCameraAppSupport.onVideoWritten(sessionToken, resultUri);
+                finishOnUiThread();
+            } else {
+                final Uri data = resultUri;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        FakeCameraActivity host = handoff.host;
+                        host.setResult(RESULT_OK, new Intent().setData(data)
+                                .addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION));
+                        Log.i(TAG, "Video result delivered");
+                        host.finish();
+                    }
+                });
             }
+        } catch (Exception e) {
+            Log.e(TAG, "Error copying video", e);
+            handleError("Error copying video: " + e.getMessage());
         }
     }
 
     /**
-     * Scale bitmap if it exceeds maximum dimensions
+     * Load bitmap from URI, decoding no larger than needed for maxDimension
      */
-    private Bitmap scaleBitmapIfNeeded(Bitmap original) {
-        int width = original.getWidth();
-        int height = original.getHeight();
-
-        if (width <= MAX_IMAGE_SIZE && height <= MAX_IMAGE_SIZE) {
-            return original;
+    private Bitmap loadBitmapFromUri(Uri uri, int maxDimension) {
+        Bitmap bitmap = FakeImageProcessor.decodeBounded(getContentResolver(), uri, maxDimension);
+        if (bitmap == null) {
+            Log.e(TAG, "Failed to decode bitmap from URI: " + uri);
         }
+        return bitmap;
+    }
 
-        float scale = Math.min(
-            (float) MAX_IMAGE_SIZE / width,
-            (float) MAX_IMAGE_SIZE / height
-        );
-
-        int newWidth = Math.round(width * scale);
-        int newHeight = Math.round(height * scale);
+    /**
+     * Stream the picked file straight into EXTRA_OUTPUT when no pixel work is needed.
+     * Returns true if the result was delivered (or an error reported) this way.
+     */
+    private boolean tryPassthrough(Uri uri, boolean remember) {
+        if (outputUri == null) {
+            return false;
+        }
+        Matrix matrix = CameraHook.getTransformationMatrix();
+        if (matrix != null && !matrix.isIdentity()) {
+            return false;
+        }
+        if (!FakeImageProcessor.isPassthroughCandidate(getContentResolver(), uri, MAX_IMAGE_SIZE)) {
+            return false;
+        }
 
-        Log.d(TAG, "Scaling bitmap from " + width + "x" + height + " to " + newWidth + "x" + newHeight);
+        try {
+            long bytes = FakeImageProcessor.copyUri(getContentResolver(), uri, outputUri);
+            Log.i(TAG, "Passthrough copied " + bytes + " bytes to " + outputUri);
+        } catch (Exception e) {
+            // Output may be partially written; fall back to the decode path which rewrites it
+            Log.w(TAG, "Passthrough failed, falling back to decode", e);
+            return false;
+        }
 
-        Bitmap scaled = Bitmap.createScaledBitmap(original, newWidth, newHeight, true);
+        if (remember) {
+            RecentImageStore.remember(getApplicationContext(), uri, MAX_IMAGE_SIZE);
+        }
 
-        if (scaled != original) {
-            original.recycle();
+        if (Thread.currentThread().isInterrupted()) {
+            return true;
         }
 
-        return scaled;
+        if (isFakeCameraAppMode) {
+            FakeCameraAppSupport.onImageWritten(sessionToken);
+            finishOnUiThread();
+        } else {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    FakeCameraActivity host = handoff.host;
+                    host.setResult(RESULT_OK, new Intent().setData(outputUri));
+                    Log.i(TAG, "Result delivered via passthrough");
+                    host.finish();
+                }
+            });
+        }
+        return true;
     }
 
     /**
-     * Apply transformations from CameraHook
+     * Scale and transform in one pass, recycling the original if a new bitmap was produced
      */
-    private Bitmap applyHookTransformations(Bitmap original) {
-        try {
-            Matrix matrix = CameraHook.getTransformationMatrix();
-
-            if (matrix == null || matrix.isIdentity()) {
-                return original;
-            }
-
-            Log.d(TAG, "Applying CameraHook transformations");
-
-            Bitmap transformed = Bitmap.createBitmap(
-                original, 0, 0,
-                original.getWidth(),
-                original.getHeight(),
-                matrix,
-                true
-            );
-
-            if (transformed != original) {
-                original.recycle();
-            }
-
-            return transformed;
-
-        } catch (Exception e) {
-            Log.e(TAG, "Error applying transformations", e);
-            return original;
+    private Bitmap renderForCapture(Bitmap original, float scale) {
+        Matrix matrix = CameraHook.getTransformationMatrix();
+        Bitmap rendered = FakeImageProcessor.render(original, scale, matrix);
+        if (rendered != original) {
+            original.recycle();
         }
+        return rendered;
     }
 
     /**
-     * Deliver result in direct mode (not using FakeCameraAppSupport)
+     * Deliver result in direct mode (not using FakeCameraAppSupport).
+     * Called on the worker: encoding and the URI write happen here, the UI thread only sets the result.
      */
     private void deliverResult(final Bitmap bitmap) {
+        boolean saved = true;
+        if (outputUri != null) {
+            try {
+                saveBitmapToUri(bitmap, outputUri);
+            } catch (Exception e) {
+                saved = false;
+            }
+        }
+
+        final boolean ok = saved;
         runOnUiThread(new Runnable() {
             @Override
             public void run() {
+                FakeCameraActivity host = handoff.host;
                 try {
+                    if (!ok) {
+                        host.setResult(RESULT_CANCELED);
+                        return;
+                    }
+
                     Intent resultIntent = new Intent();
 
                     if (outputUri != null) {
-                        // Save to specified URI
-                        saveBitmapToUri(bitmap, outputUri);
+                        // Already written on the worker
                         resultIntent.setData(outputUri);
                     } else {
-                        // Return as thumbnail
+                        // Return as thumbnail (already thumbnail-sized by processSelectedImage)
                         resultIntent.putExtra("data", bitmap);
                     }
 
-                    setResult(RESULT_OK, resultIntent);
+                    host.setResult(RESULT_OK, resultIntent);
                     Log.i(TAG, "Result delivered successfully");
 
                 } catch (Exception e) {
                     Log.e(TAG, "Error delivering result", e);
-                    setResult(RESULT_CANCELED);
+                    host.setResult(RESULT_CANCELED);
                 } finally {
-                    finish();
+                    // finish() parcels the result Intent, so the bitmap can go afterwards
+                    host.finish();
+                    bitmap.recycle();
                 }
             }
         });
@@ -338,15 +649,16 @@ public class FakeCameraActivity extends Activity {
         runOnUiThread(new Runnable() {
             @Override
             public void run() {
-                Toast.makeText(FakeCameraActivity.this, message, Toast.LENGTH_SHORT).show();
+                FakeCameraActivity host = handoff.host;
+                Toast.makeText(host, message, Toast.LENGTH_SHORT).show();
 
                 if (isFakeCameraAppMode) {
-                    FakeCameraAppSupport.onImageSelected(null);
+                    FakeCameraAppSupport.onCaptureCancelled(sessionToken);
                 } else {
-                    setResult(RESULT_CANCELED);
+                    host.setResult(RESULT_CANCELED);
                 }
 
-                finish();
+                host.finish();
             }
         });
     }
@@ -358,13 +670,32 @@ public class FakeCameraActivity extends Activity {
         runOnUiThread(new Runnable() {
             @Override
             public void run() {
-                finish();
+                handoff.host.finish();
             }
         });
     }
 
+    @Override
+    public Object onRetainNonConfigurationInstance() {
+        return handoff;
+    }
+
     @Override
     protected void onDestroy() {
+        // A dialog still showing would leak its window
+        if (recentDialog != null) {
+            recentDialog.dismiss();
+            recentDialog = null;
+        }
+        // Being recreated: the task carries on and delivers to the next instance
+        if (!isChangingConfigurations()) {
+            // Stop decoding/transforming for an activity nobody will see again
+            if (ImageProcessingExecutor.cancel(handoff.task) && isFakeCameraAppMode) {
+                // The task would have ended the session; release it now instead of at its TTL
+                FakeCameraAppSupport.onCaptureCancelled(sessionToken);
+            }
+            handoff.task = null;
+        }
         super.onDestroy();
         Log.d(TAG, "Activity destroyed");
     }
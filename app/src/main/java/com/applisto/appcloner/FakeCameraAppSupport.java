@@ -4,6 +4,7 @@ import android.app.Activity;
 import android.app.Instrumentation;
 import android.content.Context;
 import android.content.Intent;
+import android.content.res.AssetFileDescriptor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Matrix;
@@ -12,6 +13,8 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.provider.MediaStore;
 import android.text.TextUtils;
 import android.util.Log;
@@ -19,19 +22,38 @@ import android.util.Log;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.OutputStream;
 import java.lang.ref.WeakReference;
 import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
 
 public final class FakeCameraAppSupport extends ExecStartActivityHook {
     private static final String TAG = "FakeCameraAppSupport";
 
-    // Runtime state for returning a result to the original caller
-    private static WeakReference<Activity> sActivityRef;
-    private static int sRequestCode = -1;
-    private static Uri sUri;
-    private static String sCameraMode; // "selfie", "front", "back"
-    private static boolean sIsVideoCapture;
+    /** Intent extra carrying the session token from the interception to FakeCameraActivity */
+    public static final String EXTRA_SESSION_TOKEN = "fake_camera_session";
+
+    // Sessions nobody completed within this time are dropped
+    private static final long SESSION_TTL_MS = 10 * 60 * 1000;
+
+    // cloner.json switch: answer capture intents from CameraHook's frame without any UI
+    private static final String KEY_AUTO_SERVE = "fake_camera_auto_serve";
+    private static volatile boolean sAutoServe;
+
+    // cloner.json: asset auto-served for ACTION_VIDEO_CAPTURE (must be stored uncompressed)
+    private static final String KEY_AUTO_SERVE_VIDEO = "fake_camera_video_asset";
+    private static final String DEFAULT_VIDEO_ASSET = "fake_video.mp4";
+    private static volatile String sAutoServeClip;
+
+    // Activity#dispatchActivityResult, resolved on first direct delivery
+    private static volatile Method sDispatchActivityResult;
+
+    // In-flight captures keyed by token, guarded by LOCK
+    private static final Map<String, CaptureSession> SESSIONS = new HashMap<>();
 
     private static FakeCameraAppSupport INSTANCE;
     private static Context sAppContext;
@@ -40,6 +62,56 @@ public final class FakeCameraAppSupport extends ExecStartActivityHook {
     // Synchronized lock for thread safety
     private static final Object LOCK = new Object();
 
+    /**
+     * Runtime state for returning a result to the original caller of one capture
+     */
+    public static final class CaptureSession {
+        public final String token;
+        public final WeakReference<Activity> activityRef;
+        public final int requestCode;
+        public final String resultWho; // fragment/embedded id the result belongs to, or null
+        public final Uri uri;
+        public final String cameraMode; // requested lens: "front", "back"
+        public final boolean isVideoCapture;
+        // Served headless: the result is dispatched to the caller instead of going through FakeCameraActivity
+        public final boolean direct;
+        final long createdAt = SystemClock.elapsedRealtime();
+
+        CaptureSession(String token, Activity activity, int requestCode, String resultWho, Uri uri,
+                       String cameraMode, boolean isVideoCapture, boolean direct) {
+            this.token = token;
+            this.activityRef = new WeakReference<>(activity);
+            this.requestCode = requestCode;
+            this.resultWho = resultWho;
+            this.uri = uri;
+            this.cameraMode = cameraMode;
+            this.isVideoCapture = isVideoCapture;
+            this.direct = direct;
+        }
+
+        boolean isExpired(long now) {
+            return activityRef.get() == null || now - createdAt > SESSION_TTL_MS;
+        }
+    }
+
+    // Off: capture intents go to the real camera app
+    static final String GROUP = "fake_camera_app";
+    private static final HookSwitches.Switch SWITCH = HookSwitches.get(GROUP);
+
+    /**
+     * Loads CameraHook's frames on the observer thread as soon as a capture start was taken
+     * over, so neither the auto-serve worker nor FakeCameraActivity.onCreate (via
+     * CameraHook.install) has to decode them on its own path.
+     */
+    private static final StartObserver FRAME_PREFETCH = new StartObserver() {
+        @Override
+        public void onStartObserved(StartSnapshot snapshot) {
+            if (snapshot.intercepted) {
+                CameraHook.ensureFramesLoaded(sAppContext);
+            }
+        }
+    };
+
     /** Call this once early (e.g., Application.onCreate). */
     public static void setup(Context ctx) {
         synchronized (LOCK) {
@@ -49,16 +121,34 @@ public final class FakeCameraAppSupport extends ExecStartActivityHook {
             }
 
             sAppContext = ctx.getApplicationContext();
+            try {
+                sAutoServe = ClonerSettings.get(sAppContext).raw().optBoolean(KEY_AUTO_SERVE, false);
+                if (sAutoServe) {
+                    sAutoServeClip = findAutoServeClip(
+                        ClonerSettings.get(sAppContext).raw().optString(KEY_AUTO_SERVE_VIDEO, DEFAULT_VIDEO_ASSET));
+                }
+            } catch (Exception e) {
+                Log.w(TAG, "Unable to read " + KEY_AUTO_SERVE + ", using picker", e);
+            }
             INSTANCE = new FakeCameraAppSupport();
             ExecStartActivityHook.register(INSTANCE);
+            ExecStartActivityHook.registerObserver(FRAME_PREFETCH,
+                new InterestFilter().addAction(MediaStore.ACTION_IMAGE_CAPTURE));
             
-            Log.i(TAG, "FakeCameraAppSupport registered successfully");
+            Log.i(TAG, "FakeCameraAppSupport registered successfully" + (sAutoServe ? " (auto-serve)" : ""));
         }
     }
 
+    @Override
+    protected InterestFilter getInterestFilter() {
+        return new InterestFilter()
+            .addAction(MediaStore.ACTION_IMAGE_CAPTURE)
+            .addAction(MediaStore.ACTION_VIDEO_CAPTURE);
+    }
+
     @Override
     protected Instrumentation.ActivityResult onExecStartActivity(ExecStartActivityArgs args) {
-        if (args == null || args.intent == null) {
+        if (!SWITCH.isEnabled() || args == null || args.intent == null) {
             return null;
         }
 
@@ -83,28 +173,45 @@ public final class FakeCameraAppSupport extends ExecStartActivityHook {
 
         Log.i(TAG, "Intercepting camera intent: " + action + " from " + activity.getClass().getSimpleName());
 
+        // Images left over from a multi-select pick are served before anything else
+        // (claimed here, so two captures racing for the last one cannot both count on it)
+        CaptureQueue.Pick pick = isVideoCapture ? null : CaptureQueue.poll();
+        boolean direct = pick != null || sAutoServe && (!isVideoCapture || sAutoServeClip != null);
+
+        // Store original caller information under a fresh token
+        CaptureSession session = new CaptureSession(
+            UUID.randomUUID().toString(), activity, args.requestCode, args.resultWho,
+            (Uri) intent.getParcelableExtra(MediaStore.EXTRA_OUTPUT),
+            extractCameraMode(intent), isVideoCapture, direct);
+
         synchronized (LOCK) {
-            // Store original caller information
-            sActivityRef = new WeakReference<>(activity);
-            sRequestCode = args.requestCode;
-            sUri = intent.getParcelableExtra(MediaStore.EXTRA_OUTPUT);
-            sIsVideoCapture = isVideoCapture;
-            
-            // Extract camera mode hints if present
-            sCameraMode = extractCameraMode(intent);
+            purgeExpiredLocked();
+            SESSIONS.put(session.token, session);
+        }
+
+        if (direct) {
+            if (autoServe(session, pick)) {
+                return CONSUMED;
+            }
+            if (pick != null) {
+                pick.release();
+            }
+            removeSession(session.token);
+            return null;
         }
 
         // Launch our FakeCameraActivity instead
         Intent fakeCameraIntent = new Intent(activity, FakeCameraActivity.class);
         fakeCameraIntent.putExtra("fake_camera_app", true);
         fakeCameraIntent.putExtra("is_video_capture", isVideoCapture);
+        fakeCameraIntent.putExtra(EXTRA_SESSION_TOKEN, session.token);
         
-        if (sUri != null) {
-            fakeCameraIntent.putExtra(MediaStore.EXTRA_OUTPUT, sUri);
+        if (session.uri != null) {
+            fakeCameraIntent.putExtra(MediaStore.EXTRA_OUTPUT, session.uri);
         }
         
-        if (sCameraMode != null) {
-            fakeCameraIntent.putExtra("camera_mode", sCameraMode);
+        if (session.cameraMode != null) {
+            fakeCameraIntent.putExtra("camera_mode", session.cameraMode);
         }
 
         try {
@@ -117,9 +224,7 @@ public final class FakeCameraAppSupport extends ExecStartActivityHook {
             
         } catch (Exception e) {
             Log.e(TAG, "Failed to launch FakeCameraActivity", e);
-            synchronized (LOCK) {
-                clearState();
-            }
+            removeSession(session.token);
             // Return null to let the original intent proceed
             return null;
         }
@@ -145,6 +250,96 @@ public final class FakeCameraAppSupport extends ExecStartActivityHook {
         return "back";
     }
 
+    /**
+     * Headless path: serve the pick claimed from CaptureQueue, or else CameraHook's frame for
+     * the session's mode, on the image executor and run the normal delivery pipeline. Returns
+     * false if the work could not be queued, in which case the caller falls back to the picker flow.
+     */
+    private static boolean autoServe(final CaptureSession session, final CaptureQueue.Pick pick) {
+        ImageProcessingExecutor.Task task = ImageProcessingExecutor.submit("auto:" + session.token,
+                ImageProcessingExecutor.PRIORITY_INTERACTIVE, new Runnable() {
+                    @Override
+                    public void run() {
+                        if (session.isVideoCapture) {
+                            serveClip(session);
+                            return;
+                        }
+                        // Same transform as every other capture path (see CameraHook.getCaptureBitmap)
+                        Bitmap bitmap = pick != null ? pick.take() : null;
+                        if (bitmap != null) {
+                            bitmap = applyTransformations(bitmap);
+                        } else {
+                            // Frames only; camera hooks may still be deferred
+                            CameraHook.ensureFramesLoaded(sAppContext);
+                            bitmap = CameraHook.getCaptureBitmap(session.cameraMode,
+                                    CameraHook.getTransformationMatrix());
+                        }
+                        if (bitmap == null) {
+                            Log.e(TAG, "No fake frame for mode " + session.cameraMode);
+                            deliverCancelResult(session);
+                            return;
+                        }
+                        processAndDeliver(session, bitmap, true);
+                    }
+                });
+        if (task == null) {
+            Log.w(TAG, "Image executor saturated, falling back to picker");
+            return false;
+        }
+        Log.i(TAG, "Auto-serving " + (session.isVideoCapture ? "clip " + sAutoServeClip : "image")
+                + " for session " + session.token);
+        return true;
+    }
+
+    /**
+     * The configured clip asset if it exists and can be opened as a file slice, else null
+     */
+    private static String findAutoServeClip(String assetName) {
+        if (TextUtils.isEmpty(assetName)) {
+            return null;
+        }
+        try (AssetFileDescriptor afd = sAppContext.getAssets().openFd(assetName)) {
+            Log.i(TAG, "Auto-serve clip " + assetName + " (" + afd.getLength() + " bytes)");
+            return assetName;
+        } catch (Exception e) {
+            Log.i(TAG, "No auto-serve clip " + assetName + ", video captures use the picker");
+            return null;
+        }
+    }
+
+    /**
+     * Worker: stream the auto-serve clip into the session's output. Without EXTRA_OUTPUT
+     * the clip goes to a cache file whose URI is returned (delivery stays in-process).
+     */
+    private static void serveClip(CaptureSession session) {
+        Uri resultUri = session.uri;
+        try (AssetFileDescriptor in = sAppContext.getAssets().openFd(sAutoServeClip)) {
+            long bytes;
+            if (resultUri != null) {
+                try (ParcelFileDescriptor out = sAppContext.getContentResolver().openFileDescriptor(resultUri, "wt")) {
+                    if (out == null) {
+                        throw new IOException("Cannot open " + resultUri);
+                    }
+                    bytes = FakeImageProcessor.copy(in, out);
+                }
+            } else {
+                // One fixed file, overwritten by each capture, so clips never pile up in the cache
+                File file = new File(sAppContext.getCacheDir(), "fake_capture.mp4");
+                try (ParcelFileDescriptor out = ParcelFileDescriptor.open(file,
+                        ParcelFileDescriptor.MODE_WRITE_ONLY | ParcelFileDescriptor.MODE_CREATE
+                                | ParcelFileDescriptor.MODE_TRUNCATE)) {
+                    bytes = FakeImageProcessor.copy(in, out);
+                }
+                resultUri = Uri.fromFile(file);
+            }
+            Log.i(TAG, "Served " + bytes + " byte clip to " + resultUri);
+            postSuccessResult(session, null, resultUri);
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to serve clip", e);
+            deliverCancelResult(session);
+        }
+    }
+
     /**
      * Try to find the Activity context from various sources
      */
@@ -174,47 +369,125 @@ public final class FakeCameraAppSupport extends ExecStartActivityHook {
     }
 
     /**
-     * Called by FakeCameraActivity when user picks/captures an image
+     * Called by FakeCameraActivity when user picks/captures an image for the given session.
+     * Transform, JPEG encode and the output URI write run on the image executor;
+     * only setResult goes back to the main thread. Pass transformed=true when the
+     * bitmap already went through FakeImageProcessor.render with CameraHook's matrix.
      */
-    public static void onImageSelected(final Bitmap bitmap) {
+    public static void onImageSelected(final String token, final Bitmap bitmap, final boolean transformed) {
+        final CaptureSession session = getSession(token);
+        if (session == null) {
+            Log.w(TAG, "onImageSelected: unknown or expired session " + token);
+            return;
+        }
+
         if (bitmap == null) {
             Log.e(TAG, "onImageSelected: bitmap is null");
-            deliverCancelResult();
+            deliverCancelResult(session);
+            return;
+        }
+
+        ImageProcessingExecutor.Task task = ImageProcessingExecutor.submit("deliver:" + token,
+                ImageProcessingExecutor.PRIORITY_INTERACTIVE, new Runnable() {
+                    @Override
+                    public void run() {
+                        processAndDeliver(session, bitmap, transformed);
+                    }
+                });
+        if (task == null) {
+            Log.e(TAG, "Image executor saturated, cancelling capture");
+            deliverCancelResult(session);
+        }
+    }
+
+    /**
+     * Worker half of the delivery pipeline
+     */
+    private static void processAndDeliver(CaptureSession session, Bitmap bitmap, boolean transformed) {
+        try {
+            // Apply any transformations from CameraHook, unless the caller already did
+            Bitmap finalBitmap = transformed ? bitmap : applyTransformations(bitmap);
+
+            final Bitmap thumbnail;
+            if (session.uri != null) {
+                // Save to specified URI
+                if (!saveBitmapToUri(sAppContext, finalBitmap, session.uri)) {
+                    finalBitmap.recycle();
+                    deliverCancelResult(session);
+                    return;
+                }
+                finalBitmap.recycle();
+                thumbnail = null;
+            } else {
+                // Return as thumbnail in extras
+                thumbnail = FakeImageProcessor.createThumbnail(finalBitmap);
+                if (thumbnail != finalBitmap) {
+                    finalBitmap.recycle();
+                }
+            }
+
+            postSuccessResult(session, thumbnail);
+        } catch (Exception e) {
+            Log.e(TAG, "Error delivering image result", e);
+            deliverCancelResult(session);
+        }
+    }
+
+    /**
+     * Called by FakeCameraActivity after it wrote the image into the session's output URI itself
+     * (byte passthrough), so only the result needs to be set.
+     */
+    public static void onImageWritten(String token) {
+        CaptureSession session = getSession(token);
+        if (session == null) {
+            Log.w(TAG, "onImageWritten: unknown or expired session " + token);
             return;
         }
+        postSuccessResult(session, null);
+    }
 
+    /**
+     * Called by FakeCameraActivity once the picked clip has been streamed to the session's
+     * output URI; resultUri is what the caller receives as data (the picked URI if there was no output).
+     */
+    public static void onVideoWritten(String token, Uri resultUri) {
+        CaptureSession session = getSession(token);
+        if (session == null) {
+            Log.w(TAG, "onVideoWritten: unknown or expired session " + token);
+            return;
+        }
+        postSuccessResult(session, null, resultUri);
+    }
+
+    /**
+     * Called by FakeCameraActivity when the user backed out or processing failed
+     */
+    public static void onCaptureCancelled(String token) {
+        CaptureSession session = getSession(token);
+        if (session != null) {
+            deliverCancelResult(session);
+        }
+    }
+
+    /**
+     * Hop to the main thread to set RESULT_OK on the session's caller
+     */
+    private static void postSuccessResult(CaptureSession session, Bitmap thumbnail) {
+        postSuccessResult(session, thumbnail, session.uri);
+    }
+
+    private static void postSuccessResult(final CaptureSession session, final Bitmap thumbnail, final Uri dataUri) {
         sMainHandler.post(new Runnable() {
             @Override
             public void run() {
-                try {
-                    synchronized (LOCK) {
-                        Activity activity = sActivityRef != null ? sActivityRef.get() : null;
-                        
-                        if (activity == null || activity.isFinishing()) {
-                            Log.w(TAG, "Activity is gone, cannot deliver result");
-                            clearState();
-                            return;
-                        }
-
-                        // Apply any transformations from CameraHook
-                        Bitmap finalBitmap = applyTransformations(bitmap);
-
-                        // Deliver the result
-                        if (sUri != null) {
-                            // Save to specified URI
-                            saveBitmapToUri(activity, finalBitmap, sUri);
-                            deliverSuccessResult(null);
-                        } else {
-                            // Return as thumbnail in extras
-                            deliverSuccessResult(finalBitmap);
-                        }
+                Activity activity = session.activityRef.get();
 
-                        clearState();
-                    }
-                } catch (Exception e) {
-                    Log.e(TAG, "Error delivering image result", e);
-                    deliverCancelResult();
+                if (activity == null || activity.isFinishing()) {
+                    Log.w(TAG, "Activity is gone, cannot deliver result");
+                } else {
+                    deliverSuccessResult(session, activity, thumbnail, dataUri);
                 }
+                removeSession(session.token);
             }
         });
     }
@@ -224,24 +497,10 @@ public final class FakeCameraAppSupport extends ExecStartActivityHook {
      */
     private static Bitmap applyTransformations(Bitmap original) {
         try {
-            // Get transformation matrix from CameraHook
-            Matrix matrix = CameraHook.getTransformationMatrix();
-            if (matrix == null || matrix.isIdentity()) {
-                return original;
-            }
-
-            Bitmap transformed = Bitmap.createBitmap(
-                original, 0, 0, 
-                original.getWidth(), 
-                original.getHeight(), 
-                matrix, 
-                true
-            );
-
+            Bitmap transformed = FakeImageProcessor.render(original, 1f, CameraHook.getTransformationMatrix());
             if (transformed != original) {
                 original.recycle();
             }
-
             return transformed;
         } catch (Exception e) {
             Log.e(TAG, "Error applying transformations", e);
@@ -252,17 +511,21 @@ public final class FakeCameraAppSupport extends ExecStartActivityHook {
     /**
      * Save bitmap to the specified URI
      */
-    private static void saveBitmapToUri(Context ctx, Bitmap bitmap, Uri uri) {
+    private static boolean saveBitmapToUri(Context ctx, Bitmap bitmap, Uri uri) {
         OutputStream out = null;
         try {
             out = ctx.getContentResolver().openOutputStream(uri);
-            if (out != null) {
-                bitmap.compress(Bitmap.CompressFormat.JPEG, 90, out);
-                out.flush();
-                Log.d(TAG, "Saved bitmap to URI: " + uri);
+            if (out == null) {
+                Log.e(TAG, "No output stream for URI: " + uri);
+                return false;
             }
+            bitmap.compress(Bitmap.CompressFormat.JPEG, 90, out);
+            out.flush();
+            Log.d(TAG, "Saved bitmap to URI: " + uri);
+            return true;
         } catch (Exception e) {
             Log.e(TAG, "Failed to save bitmap to URI: " + uri, e);
+            return false;
         } finally {
             if (out != null) {
                 try {
@@ -275,111 +538,150 @@ public final class FakeCameraAppSupport extends ExecStartActivityHook {
     /**
      * Deliver success result to calling activity
      */
-    private static void deliverSuccessResult(Bitmap thumbnail) {
-        synchronized (LOCK) {
-            Activity activity = sActivityRef != null ? sActivityRef.get() : null;
-            if (activity == null) return;
+    private static void deliverSuccessResult(CaptureSession session, Activity activity, Bitmap thumbnail, Uri dataUri) {
+        Intent resultIntent = new Intent();
+        
+        if (thumbnail != null) {
+            // Add thumbnail to extras (already bounded by FakeImageProcessor.createThumbnail)
+            resultIntent.putExtra("data", thumbnail);
+        }
+        
+        if (dataUri != null) {
+            resultIntent.setData(dataUri);
+            resultIntent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        }
 
-            Intent resultIntent = new Intent();
-            
-            if (thumbnail != null) {
-                // Add thumbnail to extras
-                resultIntent.putExtra("data", thumbnail);
-            }
-            
-            if (sUri != null) {
-                resultIntent.setData(sUri);
-            }
+        if (session.direct) {
+            dispatchActivityResult(activity, session, Activity.RESULT_OK, resultIntent);
+            return;
+        }
 
-            // Use reflection to call setResult
+        // Use reflection to call setResult
+        try {
+            Method setResult = Activity.class.getMethod("setResult", int.class, Intent.class);
+            setResult.invoke(activity, Activity.RESULT_OK, resultIntent);
+            
+            Log.i(TAG, "Delivered RESULT_OK to activity for session " + session.token);
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to deliver result via reflection", e);
+            // Fallback: try direct call
             try {
-                Method setResult = Activity.class.getMethod("setResult", int.class, Intent.class);
-                setResult.invoke(activity, Activity.RESULT_OK, resultIntent);
-                
-                Log.i(TAG, "Delivered RESULT_OK to activity");
-            } catch (Exception e) {
-                Log.e(TAG, "Failed to deliver result via reflection", e);
-                // Fallback: try direct call
-                try {
-                    activity.setResult(Activity.RESULT_OK, resultIntent);
-                } catch (Exception e2) {
-                    Log.e(TAG, "Fallback setResult also failed", e2);
-                }
+                activity.setResult(Activity.RESULT_OK, resultIntent);
+            } catch (Exception e2) {
+                Log.e(TAG, "Fallback setResult also failed", e2);
             }
         }
     }
 
     /**
-     * Deliver cancel result to calling activity
+     * Deliver cancel result to the session's calling activity
      */
-    private static void deliverCancelResult() {
+    private static void deliverCancelResult(final CaptureSession session) {
         sMainHandler.post(new Runnable() {
             @Override
             public void run() {
-                synchronized (LOCK) {
-                    Activity activity = sActivityRef != null ? sActivityRef.get() : null;
-                    if (activity == null || activity.isFinishing()) {
-                        clearState();
-                        return;
-                    }
-
+                Activity activity = session.activityRef.get();
+                if (activity != null && !activity.isFinishing()) {
                     try {
-                        activity.setResult(Activity.RESULT_CANCELED);
-                        Log.i(TAG, "Delivered RESULT_CANCELED to activity");
+                        if (session.direct) {
+                            dispatchActivityResult(activity, session, Activity.RESULT_CANCELED, null);
+                        } else {
+                            activity.setResult(Activity.RESULT_CANCELED);
+                        }
+                        Log.i(TAG, "Delivered RESULT_CANCELED to activity for session " + session.token);
                     } catch (Exception e) {
                         Log.e(TAG, "Failed to deliver cancel result", e);
                     }
-
-                    clearState();
                 }
+                removeSession(session.token);
             }
         });
     }
 
     /**
-     * Clear stored state
+     * Hand a result straight to the caller's onActivityResult, the way ActivityThread does
+     * for a result coming back from another activity. Main thread only.
      */
-    private static void clearState() {
-        sActivityRef = null;
-        sRequestCode = -1;
-        sUri = null;
-        sCameraMode = null;
-        sIsVideoCapture = false;
+    private static void dispatchActivityResult(Activity activity, CaptureSession session, int resultCode, Intent data) {
+        int requestCode = session.requestCode;
+        if (requestCode < 0) {
+            // Plain startActivity, the caller expects no result
+            return;
+        }
+        try {
+            Method dispatch = sDispatchActivityResult;
+            if (dispatch == null) {
+                for (Method m : Activity.class.getDeclaredMethods()) {
+                    if ("dispatchActivityResult".equals(m.getName())) {
+                        m.setAccessible(true);
+                        dispatch = m;
+                        break;
+                    }
+                }
+                sDispatchActivityResult = dispatch;
+            }
+            if (dispatch != null) {
+                // (who, requestCode, resultCode, data) before R, plus a reason string since
+                if (dispatch.getParameterTypes().length == 5) {
+                    dispatch.invoke(activity, session.resultWho, requestCode, resultCode, data, "fake-camera");
+                } else {
+                    dispatch.invoke(activity, session.resultWho, requestCode, resultCode, data);
+                }
+                Log.i(TAG, "Dispatched result " + resultCode + " for request " + requestCode);
+                return;
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "dispatchActivityResult failed, calling onActivityResult", e);
+        }
+
+        try {
+            Method onActivityResult = Activity.class.getDeclaredMethod(
+                "onActivityResult", int.class, int.class, Intent.class);
+            onActivityResult.setAccessible(true);
+            onActivityResult.invoke(activity, requestCode, resultCode, data);
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to deliver result to " + activity.getClass().getSimpleName(), e);
+        }
     }
 
     /**
-     * Get stored request code
+     * Look up a live session; expired sessions are purged on the way
      */
-    public static int getStoredRequestCode() {
+    public static CaptureSession getSession(String token) {
+        if (token == null) {
+            return null;
+        }
         synchronized (LOCK) {
-            return sRequestCode;
+            purgeExpiredLocked();
+            return SESSIONS.get(token);
         }
     }
 
-    /**
-     * Get stored URI
-     */
-    public static Uri getStoredUri() {
+    private static void removeSession(String token) {
         synchronized (LOCK) {
-            return sUri;
+            SESSIONS.remove(token);
         }
     }
 
-    /**
-     * Get stored camera mode
-     */
-    public static String getStoredCameraMode() {
-        synchronized (LOCK) {
-            return sCameraMode;
+    private static void purgeExpiredLocked() {
+        long now = SystemClock.elapsedRealtime();
+        Iterator<CaptureSession> it = SESSIONS.values().iterator();
+        while (it.hasNext()) {
+            CaptureSession session = it.next();
+            if (session.isExpired(now)) {
+                Log.d(TAG, "Dropping expired session " + session.token);
+                it.remove();
+            }
         }
     }
 
     /**
-     * Check if current operation is video capture
+     * Number of captures currently in flight
      */
-    public static boolean isVideoCapture() {
+    public static int getActiveSessionCount() {
         synchronized (LOCK) {
-            return sIsVideoCapture;
+            purgeExpiredLocked();
+            return SESSIONS.size();
         }
     }
 }
@@ -0,0 +1,337 @@
+package com.applisto.appcloner;
+
+import android.content.ContentResolver;
+import android.content.res.AssetFileDescriptor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+
+/**
+ * Shared image helpers for the fake camera capture flow
+ * (FakeCameraActivity and FakeCameraAppSupport).
+ */
+public final class FakeImageProcessor {
+    private static final String TAG = "FakeImageProcessor";
+
+    /**
+     * Pixel budget of the inline "data" thumbnail. Matches the stock camera app, which
+     * returns a ~50K pixel bitmap when no EXTRA_OUTPUT is given; anything larger risks
+     * TransactionTooLargeException when the result Intent is parceled.
+     */
+    public static final int THUMBNAIL_MAX_PIXELS = 50 * 1024;
+
+    /** Longest side to decode at when only a thumbnail will be produced */
+    public static final int THUMBNAIL_DECODE_DIMENSION = 512;
+
+    // Sources above this go straight to the tiled decoder
+    private static final long TILED_DECODE_PIXELS = 100L * 1000 * 1000;
+    // Tile edge in output pixels for the tiled decoder
+    private static final int TILE_SIZE = 512;
+
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private FakeImageProcessor() {}
+
+    /**
+     * Decode an image so that its longest side is between maxDimension and 2 * maxDimension
+     * (or smaller if the source is). Bounds are read first through one stream, then the pixels
+     * are decoded with a power-of-two inSampleSize through a second one, so peak memory follows
+     * the output size rather than the source resolution. Falls back to a tiled
+     * BitmapRegionDecoder for huge sources or when the sampled decode runs out of memory.
+     */
+    public static Bitmap decodeBounded(ContentResolver resolver, Uri uri, int maxDimension) {
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        try (InputStream in = resolver.openInputStream(uri)) {
+            if (in == null) {
+                Log.e(TAG, "Failed to open input stream for URI: " + uri);
+                return null;
+            }
+            BitmapFactory.decodeStream(in, null, bounds);
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to read image bounds: " + uri, e);
+            return null;
+        }
+
+        int srcW = bounds.outWidth;
+        int srcH = bounds.outHeight;
+        if (srcW <= 0 || srcH <= 0) {
+            Log.e(TAG, "Not a decodable image: " + uri);
+            return null;
+        }
+
+        int sampleSize = computeSampleSize(srcW, srcH, maxDimension);
+        Log.d(TAG, "Decoding " + srcW + "x" + srcH + " with inSampleSize=" + sampleSize);
+
+        if ((long) srcW * srcH <= TILED_DECODE_PIXELS) {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+            options.inSampleSize = sampleSize;
+            try (InputStream in = resolver.openInputStream(uri)) {
+                Bitmap bitmap = in != null ? BitmapFactory.decodeStream(in, null, options) : null;
+                if (bitmap != null) {
+                    return bitmap;
+                }
+                Log.w(TAG, "Sampled decode returned null, trying tiled decode");
+            } catch (OutOfMemoryError oom) {
+                Log.w(TAG, "Sampled decode ran out of memory, trying tiled decode", oom);
+            } catch (Exception e) {
+                Log.e(TAG, "Sampled decode failed: " + uri, e);
+                return null;
+            }
+        }
+
+        return decodeTiled(resolver, uri, srcW, srcH, sampleSize);
+    }
+
+    /**
+     * Largest power of two that keeps the longest decoded side at or above maxDimension
+     */
+    static int computeSampleSize(int width, int height, int maxDimension) {
+        int longest = Math.max(width, height);
+        int sampleSize = 1;
+        while (longest / (sampleSize * 2) >= maxDimension) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Decode the image tile by tile into a single sampled bitmap
+     */
+    @SuppressWarnings("deprecation")
+    private static Bitmap decodeTiled(ContentResolver resolver, Uri uri, int srcW, int srcH, int sampleSize) {
+        BitmapRegionDecoder decoder = null;
+        try (InputStream in = resolver.openInputStream(uri)) {
+            if (in == null) return null;
+            decoder = BitmapRegionDecoder.newInstance(in, false);
+
+            int outW = Math.max(1, srcW / sampleSize);
+            int outH = Math.max(1, srcH / sampleSize);
+            Bitmap out = Bitmap.createBitmap(outW, outH, Bitmap.Config.ARGB_8888);
+            Canvas canvas = new Canvas(out);
+
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+            options.inSampleSize = sampleSize;
+
+            int srcTile = TILE_SIZE * sampleSize;
+            Rect region = new Rect();
+            Rect dst = new Rect();
+            for (int top = 0; top < srcH; top += srcTile) {
+                for (int left = 0; left < srcW; left += srcTile) {
+                    region.set(left, top, Math.min(srcW, left + srcTile), Math.min(srcH, top + srcTile));
+                    Bitmap tile = decoder.decodeRegion(region, options);
+                    if (tile == null) continue;
+                    dst.set(left / sampleSize, top / sampleSize,
+                            region.right / sampleSize, region.bottom / sampleSize);
+                    canvas.drawBitmap(tile, null, dst, null);
+                    tile.recycle();
+                }
+            }
+
+            Log.d(TAG, "Tiled decode produced " + outW + "x" + outH);
+            return out;
+        } catch (Throwable t) {
+            Log.e(TAG, "Tiled decode failed: " + uri, t);
+            return null;
+        } finally {
+            if (decoder != null) {
+                decoder.recycle();
+            }
+        }
+    }
+
+    /**
+     * Whether the source can be handed to the caller byte for byte: a JPEG no larger than
+     * maxDimension on either side. Only the header is read. The caller still has to check
+     * that CameraHook's transform is the identity.
+     */
+    public static boolean isPassthroughCandidate(ContentResolver resolver, Uri uri, int maxDimension) {
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        try (InputStream in = resolver.openInputStream(uri)) {
+            if (in == null) return false;
+            BitmapFactory.decodeStream(in, null, bounds);
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to read image header: " + uri, e);
+            return false;
+        }
+        return "image/jpeg".equals(bounds.outMimeType)
+                && bounds.outWidth > 0 && bounds.outHeight > 0
+                && bounds.outWidth <= maxDimension && bounds.outHeight <= maxDimension;
+    }
+
+    /**
+     * Copy src to dst without decoding. Uses FileChannel.transferTo when both ends are
+     * regular files (kernel-side copy), plain buffered streaming otherwise, so memory use
+     * stays constant whatever the size (e.g. video clips).
+     * Returns the number of bytes copied.
+     */
+    public static long copyUri(ContentResolver resolver, Uri src, Uri dst) throws IOException {
+        try (AssetFileDescriptor in = resolver.openAssetFileDescriptor(src, "r");
+             ParcelFileDescriptor out = resolver.openFileDescriptor(dst, "wt")) {
+            if (in == null || out == null) {
+                throw new IOException("Cannot open " + (in == null ? src : dst));
+            }
+            return copy(in, out);
+        }
+    }
+
+    /**
+     * Same as {@link #copyUri} with an already opened source, e.g. an uncompressed APK asset
+     * (which is a slice of the APK file, hence the start offset and length).
+     */
+    public static long copy(AssetFileDescriptor in, ParcelFileDescriptor out) throws IOException {
+        if (isRegularFile(in.getFileDescriptor()) && isRegularFile(out.getFileDescriptor())) {
+            try (FileChannel source = new FileInputStream(in.getFileDescriptor()).getChannel();
+                 FileChannel target = new FileOutputStream(out.getFileDescriptor()).getChannel()) {
+                long start = in.getStartOffset();
+                long size = in.getDeclaredLength() != AssetFileDescriptor.UNKNOWN_LENGTH
+                        ? in.getDeclaredLength() : source.size() - start;
+                long position = 0;
+                while (position < size) {
+                    long n = source.transferTo(start + position, size - position, target);
+                    if (n <= 0) break;
+                    position += n;
+                }
+                if (position < size) {
+                    // Source ended early; a truncated JPEG/MP4 must not look like a good copy
+                    throw new IOException("Short copy: " + position + " of " + size + " bytes");
+                }
+                target.truncate(position);
+                Log.d(TAG, "transferTo copied " + position + " bytes");
+                return position;
+            }
+        }
+
+        // Either end not seekable (pipe/socket from a provider): stream it. createInputStream
+        // honours the source's start offset and length, e.g. for an APK asset slice.
+        try (InputStream is = in.createInputStream();
+             OutputStream os = new FileOutputStream(out.getFileDescriptor())) {
+            long copied = copyStream(is, os);
+            Log.d(TAG, "Stream copied " + copied + " bytes");
+            return copied;
+        }
+    }
+
+    static long copyStream(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        long total = 0;
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+            total += n;
+        }
+        out.flush();
+        return total;
+    }
+
+    private static boolean isRegularFile(FileDescriptor fd) {
+        try {
+            return OsConstants.S_ISREG(Os.fstat(fd).st_mode);
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Scale factor that fits a w x h image within maxDimension on its longest side (1 if already small)
+     */
+    public static float fitScale(int width, int height, int maxDimension) {
+        int longest = Math.max(width, height);
+        return longest <= maxDimension ? 1f : (float) maxDimension / longest;
+    }
+
+    /**
+     * Single render stage: scale down and apply the CameraHook transform in one draw.
+     * Returns src itself when there is nothing to do; otherwise a new bitmap (src is not recycled).
+     */
+    public static Bitmap render(Bitmap src, float scale, Matrix transform) {
+        if (src == null || src.isRecycled()) {
+            return null;
+        }
+
+        boolean identity = transform == null || transform.isIdentity();
+        if (scale >= 1f && identity) {
+            return src;
+        }
+
+        Matrix m = new Matrix();
+        if (scale < 1f) {
+            m.setScale(scale, scale);
+        }
+        if (!identity) {
+            m.postConcat(transform);
+        }
+
+        // Shift the transformed image back to the origin and size the output to fit it
+        RectF bounds = new RectF(0, 0, src.getWidth(), src.getHeight());
+        m.mapRect(bounds);
+        m.postTranslate(-bounds.left, -bounds.top);
+        int w = Math.max(1, Math.round(bounds.width()));
+        int h = Math.max(1, Math.round(bounds.height()));
+
+        Bitmap.Config config = src.getConfig() != null ? src.getConfig() : Bitmap.Config.ARGB_8888;
+        Bitmap out = Bitmap.createBitmap(w, h, config);
+        new Canvas(out).drawBitmap(src, m, new Paint(Paint.FILTER_BITMAP_FLAG));
+        Log.d(TAG, "Rendered " + src.getWidth() + "x" + src.getHeight() + " -> " + w + "x" + h
+                + (identity ? "" : " (transformed)"));
+        return out;
+    }
+
+    /**
+     * Scale factor that brings a w x h image within the thumbnail pixel budget (1 if already small)
+     */
+    public static float thumbnailScale(int width, int height) {
+        long pixels = (long) width * height;
+        if (pixels <= THUMBNAIL_MAX_PIXELS) {
+            return 1f;
+        }
+        return (float) Math.sqrt((double) THUMBNAIL_MAX_PIXELS / pixels);
+    }
+
+    /**
+     * Create the "data" extra bitmap for a capture result. The source is left untouched;
+     * if it already fits the budget it is returned as is.
+     */
+    public static Bitmap createThumbnail(Bitmap src) {
+        if (src == null || src.isRecycled()) {
+            return null;
+        }
+
+        float scale = thumbnailScale(src.getWidth(), src.getHeight());
+        if (scale >= 1f) {
+            return src;
+        }
+
+        int w = Math.max(1, Math.round(src.getWidth() * scale));
+        int h = Math.max(1, Math.round(src.getHeight() * scale));
+        try {
+            Bitmap thumb = Bitmap.createScaledBitmap(src, w, h, true);
+            Log.d(TAG, "Thumbnail " + src.getWidth() + "x" + src.getHeight() + " -> " + w + "x" + h);
+            return thumb;
+        } catch (Throwable t) {
+            Log.e(TAG, "Failed to create thumbnail", t);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package com.applisto.appcloner;
+
+import android.graphics.Canvas;
+import android.graphics.ImageFormat;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+import android.util.Size;
+import android.view.Choreographer;
+import android.view.Surface;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Draws the current fake frame into Camera2 preview surfaces.
+ *
+ * CameraHook swaps every preview Surface handed to createCaptureSession for a
+ * decoy ImageReader surface, so the real camera never reaches the screen. The
+ * original surface is then attached here and painted with lockHardwareCanvas,
+ * paced by a Choreographer running on a private looper. Frames are only drawn
+ * when CameraHook's frame generation changes (new image, rotation, flip, zoom,
+ * front/back/selfie switch) or when a surface is newly attached.
+ */
+public final class FakePreviewRenderer {
+    private static final String TAG = "FakePreviewRenderer";
+
+    private static final int DECOY_MAX_IMAGES = 2;
+
+    private static final List<Target> TARGETS = new CopyOnWriteArrayList<>();
+
+    // Off: attached surfaces keep their last frame; they are repainted when it comes back on
+    private static final HookSwitches.Switch SWITCH = HookSwitches.get(CameraHook.GROUP_CAMERA2_PREVIEW);
+
+    static {
+        HookSwitches.addListener(new HookSwitches.Listener() {
+            @Override
+            public void onSwitchChanged(String group, boolean enabled) {
+                if (enabled && SWITCH.group.equals(group)) {
+                    requestRender();
+                }
+            }
+        });
+    }
+
+    private static HandlerThread sThread;
+    private static Handler sHandler;
+    private static Choreographer sChoreographer;
+    private static boolean sFramePending = false;
+    private static Method sGetSurfaceSize;
+    private static Method sIsSurfaceForPreview;
+
+    /**
+     * An original preview surface together with the decoy the camera writes to instead
+     */
+    private static final class Target {
+        final Object owner;
+        final Surface surface;
+        final ImageReader decoyReader;
+        final Surface decoy;
+        int drawnGeneration = -1;
+
+        Target(Object owner, Surface surface, ImageReader decoyReader) {
+            this.owner = owner;
+            this.surface = surface;
+            this.decoyReader = decoyReader;
+            this.decoy = decoyReader.getSurface();
+        }
+    }
+
+    private FakePreviewRenderer() {}
+
+    /**
+     * Whether preview swapping can work on this device (needs PRIVATE ImageReader and lockHardwareCanvas)
+     */
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+    }
+
+    /**
+     * Whether the surface is consumed by the display (SurfaceView/TextureView) rather than
+     * an ImageReader, MediaRecorder or encoder. Unknown surfaces are treated as non-preview.
+     */
+    public static boolean isPreviewSurface(Surface surface) {
+        if (surface == null || !isSupported()) return false;
+        try {
+            if (sIsSurfaceForPreview == null) {
+                Class<?> utils = Class.forName("android.hardware.camera2.utils.SurfaceUtils");
+                sIsSurfaceForPreview = utils.getDeclaredMethod("isSurfaceForPreview", Surface.class);
+                sIsSurfaceForPreview.setAccessible(true);
+            }
+            return (Boolean) sIsSurfaceForPreview.invoke(null, surface);
+        } catch (Throwable t) {
+            Log.w(TAG, "isSurfaceForPreview failed", t);
+            return false;
+        }
+    }
+
+    /**
+     * Create a decoy for the given preview surface and start rendering into it.
+     * Returns the decoy surface to hand to the camera, or null to leave the surface untouched.
+     */
+    public static synchronized Surface attach(Object owner, Surface preview) {
+        if (!isSupported() || preview == null || !preview.isValid()) {
+            return null;
+        }
+
+        Target existing = findTarget(preview);
+        if (existing != null) {
+            return existing.decoy;
+        }
+
+        Size size = getSurfaceSize(preview);
+        if (size == null) {
+            Log.w(TAG, "Unknown preview surface size, leaving surface untouched");
+            return null;
+        }
+
+        try {
+            ensureThread();
+            ImageReader reader = ImageReader.newInstance(
+                size.getWidth(), size.getHeight(), ImageFormat.PRIVATE, DECOY_MAX_IMAGES);
+            reader.setOnImageAvailableListener(new ImageReader.OnImageAvailableListener() {
+                @Override
+                public void onImageAvailable(ImageReader r) {
+                    // Drain the camera output; nothing is ever displayed from it
+                    try {
+                        Image img = r.acquireLatestImage();
+                        if (img != null) img.close();
+                    } catch (Throwable ignored) {}
+                }
+            }, sHandler);
+
+            Target target = new Target(owner, preview, reader);
+            TARGETS.add(target);
+            Log.i(TAG, "Attached preview surface " + size.getWidth() + "x" + size.getHeight());
+            requestRender();
+            return target.decoy;
+        } catch (Throwable t) {
+            Log.e(TAG, "Failed to create decoy for preview surface", t);
+            return null;
+        }
+    }
+
+    /**
+     * Map a surface the app passes to CaptureRequest.Builder to the decoy the camera knows about
+     */
+    public static Surface decoyFor(Surface surface) {
+        Target target = findTarget(surface);
+        return target != null ? target.decoy : null;
+    }
+
+    /**
+     * Stop rendering into every surface attached for the given owner (a CameraDevice)
+     */
+    public static synchronized void detachAll(Object owner) {
+        List<Target> removed = new ArrayList<>();
+        for (Target target : TARGETS) {
+            if (target.owner == owner) {
+                removed.add(target);
+            }
+        }
+        TARGETS.removeAll(removed);
+        for (Target target : removed) {
+            closeQuietly(target);
+        }
+        if (!removed.isEmpty()) {
+            Log.i(TAG, "Detached " + removed.size() + " preview surface(s)");
+        }
+    }
+
+    /**
+     * Schedule a redraw on the next vsync. Cheap to call repeatedly: requests
+     * arriving before the frame callback runs are coalesced into one draw.
+     */
+    public static void requestRender() {
+        if (TARGETS.isEmpty()) {
+            return;
+        }
+        final Handler handler;
+        synchronized (FakePreviewRenderer.class) {
+            handler = sHandler;
+        }
+        if (handler == null) {
+            return;
+        }
+        handler.post(FakePreviewRenderer::scheduleFrame);
+    }
+
+    private static void scheduleFrame() {
+        // Runs on the render looper only, so sFramePending needs no locking
+        if (sFramePending) {
+            return;
+        }
+        if (sChoreographer == null) {
+            sChoreographer = Choreographer.getInstance();
+        }
+        sFramePending = true;
+        sChoreographer.postFrameCallback(FRAME_CALLBACK);
+    }
+
+    private static final Choreographer.FrameCallback FRAME_CALLBACK = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            sFramePending = false;
+            if (!SWITCH.isEnabled()) {
+                return;
+            }
+            int generation = CameraHook.getFrameGeneration();
+
+            for (Target target : TARGETS) {
+                if (target.drawnGeneration == generation) {
+                    continue;
+                }
+                if (!target.surface.isValid()) {
+                    // Surface destroyed by the app (e.g. SurfaceView gone); drop it
+                    synchronized (FakePreviewRenderer.class) {
+                        TARGETS.remove(target);
+                    }
+                    closeQuietly(target);
+                    continue;
+                }
+                if (draw(target)) {
+                    target.drawnGeneration = generation;
+                }
+            }
+        }
+    };
+
+    private static boolean draw(Target target) {
+        Canvas canvas = null;
+        try {
+            canvas = target.surface.lockHardwareCanvas();
+            CameraHook.drawFakeFrame(canvas, canvas.getWidth(), canvas.getHeight());
+            return true;
+        } catch (Throwable t) {
+            Log.w(TAG, "Preview draw failed", t);
+            return false;
+        } finally {
+            if (canvas != null) {
+                try {
+                    target.surface.unlockCanvasAndPost(canvas);
+                } catch (Throwable ignored) {}
+            }
+        }
+    }
+
+    private static Target findTarget(Surface surface) {
+        if (surface == null) return null;
+        for (Target target : TARGETS) {
+            if (target.surface == surface) {
+                return target;
+            }
+        }
+        return null;
+    }
+
+    private static void ensureThread() {
+        if (sThread != null) return;
+        sThread = new HandlerThread("FakePreview", Process.THREAD_PRIORITY_DISPLAY);
+        sThread.start();
+        sHandler = new Handler(sThread.getLooper());
+    }
+
+    /**
+     * Query the buffer size of a surface through the hidden SurfaceUtils helper
+     */
+    private static Size getSurfaceSize(Surface surface) {
+        try {
+            if (sGetSurfaceSize == null) {
+                Class<?> utils = Class.forName("android.hardware.camera2.utils.SurfaceUtils");
+                sGetSurfaceSize = utils.getDeclaredMethod("getSurfaceSize", Surface.class);
+                sGetSurfaceSize.setAccessible(true);
+            }
+            return (Size) sGetSurfaceSize.invoke(null, surface);
+        } catch (Throwable t) {
+            Log.w(TAG, "getSurfaceSize failed", t);
+            return null;
+        }
+    }
+
+    private static void closeQuietly(Target target) {
+        try {
+            target.decoyReader.close();
+        } catch (Throwable ignored) {}
+    }
+}
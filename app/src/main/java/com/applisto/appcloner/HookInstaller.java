@@ -0,0 +1,544 @@
+package com.applisto.appcloner;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.util.Log;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Member;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import top.canyie.pine.Pine;
+import top.canyie.pine.Pine.CallFrame;
+import top.canyie.pine.callback.MethodHook;
+
+/**
+ * Applies {@link HookSpec}s in batches: every spec of a batch is resolved first
+ * (class and member lookup), then all resolved ones are hooked, highest priority first.
+ * Per-hook resolve/install times and failures are kept for the diagnostics report.
+ */
+public final class HookInstaller {
+    private static final String TAG = "HookInstaller";
+
+    // cloner.json: arm hook groups on first use instead of installing them at startup
+    public static final String KEY_LAZY_HOOKS = "lazy_hooks";
+
+    // Results still of interest: installed hooks plus the most recent failures.
+    // Unhooked results are removed; beyond MAX_REPORT the oldest inactive ones go first.
+    private static final int MAX_REPORT = 256;
+    private static final List<Result> REPORT = new CopyOnWriteArrayList<>();
+
+    // Set while a Deferred action runs, to collect the results it installs
+    private static final ThreadLocal<List<Result>> CAPTURE = new ThreadLocal<>();
+
+    private HookInstaller() {}
+
+    /**
+     * Outcome of one spec
+     */
+    public static final class Result {
+        public final HookSpec spec;
+        Member[] members;
+        long resolveNanos;
+        long installNanos;
+        Throwable error;
+        boolean skipped; // known missing from ResolutionCache, not looked up
+        final InstrumentedHook hook;
+        final List<MethodHook.Unhook> unhooks = new ArrayList<>();
+
+        Result(HookSpec spec) {
+            this.spec = spec;
+            this.hook = new InstrumentedHook(spec.callback, spec.ungated ? null : HookSwitches.get(spec.group));
+        }
+
+        public boolean isInstalled() {
+            return error == null && !unhooks.isEmpty();
+        }
+
+        /**
+         * Remove the hook(s) this spec installed and drop the spec from the report
+         */
+        public void unhook() {
+            for (MethodHook.Unhook u : unhooks) {
+                try {
+                    u.unhook();
+                } catch (Throwable t) {
+                    Log.w(TAG, "Unhook failed for " + spec.describe(), t);
+                }
+            }
+            unhooks.clear();
+            REPORT.remove(this);
+        }
+    }
+
+    /**
+     * Per-thread stack of "callback ran" decisions. Pine calls afterCall exactly for the
+     * callbacks whose beforeCall ran, innermost first, so pushes and pops pair up LIFO
+     * across all hooks and nested calls on a thread.
+     */
+    private static final class Gates {
+        private boolean[] open = new boolean[16];
+        private int depth;
+
+        void push(boolean enabled) {
+            if (depth == open.length) {
+                open = Arrays.copyOf(open, depth * 2);
+            }
+            open[depth++] = enabled;
+        }
+
+        boolean pop() {
+            return depth > 0 && open[--depth];
+        }
+    }
+
+    private static final ThreadLocal<Gates> GATES = new ThreadLocal<Gates>() {
+        @Override
+        protected Gates initialValue() {
+            return new Gates();
+        }
+    };
+
+    /**
+     * Wraps a spec's callback to count calls and callback failures and to time
+     * beforeCall/afterCall. Installed in place of the callback itself.
+     * A disabled group's switch short-circuits before anything else. The switch is read
+     * once per call in beforeCall and the decision carried to afterCall on GATES, so a flip
+     * mid-call never runs one half without the other. Ungated specs have no switch.
+     */
+    static final class InstrumentedHook extends MethodHook {
+        final MethodHook callback;
+        final HookSwitches.Switch groupSwitch; // null: ungated
+        final StripedCounter errors = new StripedCounter();
+        // Striped: every hooked call records into these, calls = beforeNanos.count()
+        final StripedHistogram beforeNanos = new StripedHistogram();
+        final StripedHistogram afterNanos = new StripedHistogram();
+
+        InstrumentedHook(MethodHook callback, HookSwitches.Switch groupSwitch) {
+            this.callback = callback;
+            this.groupSwitch = groupSwitch;
+        }
+
+        boolean isEnabled() {
+            return groupSwitch == null || groupSwitch.enabled;
+        }
+
+        @Override
+        public void beforeCall(CallFrame cf) throws Throwable {
+            boolean enabled = isEnabled();
+            GATES.get().push(enabled);
+            if (enabled) {
+                runBefore(cf);
+            }
+        }
+
+        @Override
+        public void afterCall(CallFrame cf) throws Throwable {
+            if (GATES.get().pop()) {
+                runAfter(cf);
+            }
+        }
+
+        /**
+         * The callback's beforeCall with timing and error counting, no gate. For a caller
+         * that made the switch decision itself (Deferred forwarding).
+         */
+        void runBefore(CallFrame cf) throws Throwable {
+            long t0 = System.nanoTime();
+            try {
+                callback.beforeCall(cf);
+            } catch (Throwable t) {
+                errors.increment();
+                throw t;
+            } finally {
+                beforeNanos.record(System.nanoTime() - t0);
+            }
+        }
+
+        void runAfter(CallFrame cf) throws Throwable {
+            long t0 = System.nanoTime();
+            try {
+                callback.afterCall(cf);
+            } catch (Throwable t) {
+                errors.increment();
+                throw t;
+            } finally {
+                afterNanos.record(System.nanoTime() - t0);
+            }
+        }
+    }
+
+    /**
+     * Hook group installed on the first call of any of its trigger members.
+     *
+     * Triggers are cheap hooks (e.g. CameraManager creation) that run the install action
+     * once and then remove themselves. The triggering call itself is forwarded to callbacks
+     * the action installed on that same member, since Pine only picks those up from the
+     * next call on.
+     */
+    public static final class Deferred extends MethodHook {
+        private final String name;
+        private final Runnable action;
+        private final List<HookSpec> triggers = new ArrayList<>();
+        private final AtomicBoolean fired = new AtomicBoolean();
+        // Counted down once the action has finished; other triggering threads wait on it
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile Thread installer;
+        private volatile List<Result> installed = Collections.emptyList();
+        // One entry per trigger call in progress on the thread (nested calls included)
+        private final ThreadLocal<ArrayDeque<List<InstrumentedHook>>> forwarded =
+                new ThreadLocal<ArrayDeque<List<InstrumentedHook>>>() {
+                    @Override
+                    protected ArrayDeque<List<InstrumentedHook>> initialValue() {
+                        return new ArrayDeque<>();
+                    }
+                };
+        private List<Result> armed; // guarded by this
+
+        Deferred(String name, Runnable action) {
+            this.name = name;
+            this.action = action;
+        }
+
+        public Deferred on(Object target, String methodName, Object... paramTypes) {
+            triggers.add(HookSpec.method(name, target, methodName, this, paramTypes));
+            return this;
+        }
+
+        public Deferred onConstructors(Object target) {
+            triggers.add(HookSpec.constructors(name, target, this));
+            return this;
+        }
+
+        /**
+         * Hook the triggers. If none of them could be hooked the action runs right away.
+         */
+        public void arm() {
+            List<Result> results = install(triggers);
+            boolean any = false;
+            for (Result r : results) {
+                any |= r.isInstalled();
+            }
+            synchronized (this) {
+                armed = results;
+                if (fired.get()) {
+                    disarmLocked();
+                }
+            }
+            if (!any) {
+                Log.w(TAG, "No trigger for '" + name + "' could be hooked, installing now");
+                fire(null);
+            } else {
+                Log.i(TAG, "Armed '" + name + "' on " + triggers.size() + " triggers");
+            }
+        }
+
+        public boolean hasFired() {
+            return fired.get();
+        }
+
+        /**
+         * Forwarded callbacks run under this trigger's gate rather than through their own
+         * InstrumentedHook.beforeCall/afterCall, which would push onto GATES in between the
+         * trigger's push and pop. Their group switches are read once here instead.
+         */
+        @Override
+        public void beforeCall(CallFrame cf) throws Throwable {
+            List<InstrumentedHook> ran = new ArrayList<>();
+            forwarded.get().push(ran);
+            for (InstrumentedHook hook : fire(cf.method)) {
+                if (hook.isEnabled()) {
+                    hook.runBefore(cf);
+                    // Only callbacks whose beforeCall completed get afterCall
+                    ran.add(hook);
+                }
+            }
+        }
+
+        @Override
+        public void afterCall(CallFrame cf) throws Throwable {
+            List<InstrumentedHook> hooks = forwarded.get().poll();
+            if (hooks == null) {
+                return;
+            }
+            // Innermost first, as Pine does for the callbacks it calls itself
+            for (int i = hooks.size() - 1; i >= 0; i--) {
+                hooks.get(i).runAfter(cf);
+            }
+        }
+
+        /**
+         * Run the action once; returns the callbacks it installed on trigger.
+         * A trigger call on another thread while the action runs waits for it to finish,
+         * then gets the same forwarding, so it does not reach the target unhooked.
+         */
+        private List<InstrumentedHook> fire(Member trigger) {
+            if (!fired.compareAndSet(false, true)) {
+                if (installer == Thread.currentThread() || done.getCount() == 0) {
+                    // Reentrant call from the action, or the hooks were already in place
+                    return Collections.emptyList();
+                }
+                try {
+                    done.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return Collections.emptyList();
+                }
+                return forwardedFor(trigger);
+            }
+
+            installer = Thread.currentThread();
+            List<Result> results = new ArrayList<>();
+            CAPTURE.set(results);
+            long t0 = System.nanoTime();
+            try {
+                action.run();
+            } catch (Throwable t) {
+                Log.e(TAG, "Deferred install of '" + name + "' failed", t);
+            } finally {
+                CAPTURE.remove();
+                installed = results;
+                installer = null;
+                done.countDown();
+            }
+            Log.i(TAG, "Installed deferred '" + name + "' in " + (System.nanoTime() - t0) / 1000
+                    + " us" + (trigger != null ? ", triggered by " + trigger : ""));
+
+            synchronized (this) {
+                disarmLocked();
+            }
+            return forwardedFor(trigger);
+        }
+
+        private List<InstrumentedHook> forwardedFor(Member trigger) {
+            List<InstrumentedHook> hooks = new ArrayList<>();
+            if (trigger != null) {
+                for (Result r : installed) {
+                    if (r.isInstalled() && containsMember(r.members, trigger)) {
+                        hooks.add(r.hook);
+                    }
+                }
+            }
+            return hooks;
+        }
+
+        private void disarmLocked() {
+            if (armed != null) {
+                for (Result r : armed) {
+                    r.unhook();
+                }
+            }
+        }
+    }
+
+    /**
+     * Start a deferred group; add triggers with on()/onConstructors(), then arm()
+     */
+    public static Deferred defer(String name, Runnable action) {
+        return new Deferred(name, action);
+    }
+
+    /**
+     * Whether cloner.json asks for hook groups to be installed on first use
+     */
+    public static boolean isLazy(Context ctx) {
+        try {
+            return ClonerSettings.get(ctx).raw().optBoolean(KEY_LAZY_HOOKS, false);
+        } catch (Exception e) {
+            Log.w(TAG, "Unable to read " + KEY_LAZY_HOOKS + ", installing eagerly", e);
+            return false;
+        }
+    }
+
+    private static boolean containsMember(Member[] members, Member member) {
+        if (members != null) {
+            for (Member m : members) {
+                if (m.equals(member)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    public static Result install(HookSpec spec) {
+        List<Result> results = install(Collections.singletonList(spec));
+        return results.isEmpty() ? null : results.get(0);
+    }
+
+    /**
+     * Resolve all specs, then hook the resolved ones. Specs below their minSdk are skipped.
+     * Never throws; failures are logged and returned in the results.
+     */
+    public static List<Result> install(List<HookSpec> specs) {
+        long batchStart = System.nanoTime();
+
+        List<HookSpec> ordered = new ArrayList<>(specs);
+        // Stable sort: equal priorities keep declaration order
+        Collections.sort(ordered, new Comparator<HookSpec>() {
+            @Override
+            public int compare(HookSpec a, HookSpec b) {
+                return Integer.compare(b.priority, a.priority);
+            }
+        });
+
+        // Pass 1: resolve everything
+        List<Result> results = new ArrayList<>(ordered.size());
+        long resolveTotal = 0;
+        for (HookSpec spec : ordered) {
+            if (!spec.isApplicable()) {
+                continue;
+            }
+            Result r = new Result(spec);
+            long t0 = System.nanoTime();
+            String signature = spec.signature();
+            if (ResolutionCache.get(signature) == ResolutionCache.MISSING) {
+                r.skipped = true;
+                r.error = new NoSuchMethodException(spec.describe() + " (cached)");
+            } else {
+                try {
+                    r.members = resolve(spec);
+                    ResolutionCache.put(signature, ResolutionCache.RESOLVED);
+                } catch (ReflectiveOperationException e) {
+                    r.error = e;
+                    ResolutionCache.put(signature, ResolutionCache.MISSING);
+                } catch (Throwable t) {
+                    r.error = t;
+                }
+            }
+            r.resolveNanos = System.nanoTime() - t0;
+            resolveTotal += r.resolveNanos;
+            results.add(r);
+        }
+
+        // Pass 2: hook what resolved
+        long installTotal = 0;
+        int installed = 0;
+        int skipped = 0;
+        for (Result r : results) {
+            if (r.skipped) {
+                skipped++;
+                continue;
+            }
+            if (r.error != null) {
+                Log.w(TAG, "Resolve failed: " + r.spec.describe() + " - " + r.error);
+                continue;
+            }
+            long t0 = System.nanoTime();
+            try {
+                for (Member m : r.members) {
+                    r.unhooks.add(Pine.hook(m, r.hook));
+                }
+                installed++;
+            } catch (Throwable t) {
+                r.error = t;
+                Log.e(TAG, "Hook failed: " + r.spec.describe(), t);
+            }
+            r.installNanos = System.nanoTime() - t0;
+            installTotal += r.installNanos;
+        }
+
+        addToReport(results);
+        List<Result> capture = CAPTURE.get();
+        if (capture != null) {
+            capture.addAll(results);
+        }
+        ResolutionCache.saveAsync();
+        Log.i(TAG, "Installed " + installed + "/" + results.size() + " hooks in "
+                + (System.nanoTime() - batchStart) / 1000 + " us (resolve " + resolveTotal / 1000
+                + " us, install " + installTotal / 1000 + " us"
+                + (skipped > 0 ? ", " + skipped + " known missing" : "") + ")");
+        return results;
+    }
+
+    private static synchronized void addToReport(List<Result> results) {
+        REPORT.addAll(results);
+        int excess = REPORT.size() - MAX_REPORT;
+        if (excess <= 0) {
+            return;
+        }
+        List<Result> drop = new ArrayList<>(excess);
+        for (Result r : REPORT) {
+            if (drop.size() == excess) break;
+            if (!r.isInstalled()) drop.add(r);
+        }
+        for (Result r : REPORT) {
+            if (drop.size() == excess) break;
+            if (!drop.contains(r)) drop.add(r);
+        }
+        REPORT.removeAll(drop);
+    }
+
+    static Member[] resolve(HookSpec spec) throws ReflectiveOperationException {
+        Class<?> clazz = toClass(spec.target);
+        if (HookSpec.ALL_CONSTRUCTORS.equals(spec.methodName)) {
+            Constructor<?>[] ctors = clazz.getDeclaredConstructors();
+            if (ctors.length == 0) {
+                throw new NoSuchMethodException(spec.describe());
+            }
+            return ctors;
+        }
+
+        Class<?>[] params = new Class<?>[spec.paramTypes.length];
+        for (int i = 0; i < params.length; i++) {
+            params[i] = toClass(spec.paramTypes[i]);
+        }
+        return new Member[]{clazz.getDeclaredMethod(spec.methodName, params)};
+    }
+
+    private static Class<?> toClass(Object type) throws ClassNotFoundException {
+        if (type instanceof Class) {
+            return (Class<?>) type;
+        }
+        return Class.forName((String) type);
+    }
+
+    /**
+     * One row per spec installed so far: timing in microseconds and status
+     */
+    public static Cursor queryReport() {
+        MatrixCursor cursor = new MatrixCursor(new String[]{
+                "group", "hook", "priority", "members", "resolve_us", "install_us", "status", "error"});
+        for (Result r : REPORT) {
+            String status = r.skipped ? "skipped" : r.error != null ? "failed"
+                    : r.unhooks.isEmpty() ? "removed" : "installed";
+            cursor.addRow(new Object[]{
+                    r.spec.group, r.spec.describe(), r.spec.priority,
+                    r.members != null ? r.members.length : 0,
+                    r.resolveNanos / 1000, r.installNanos / 1000,
+                    status, r.error != null ? String.valueOf(r.error) : null});
+        }
+        return cursor;
+    }
+
+    /**
+     * Per installed hook: calls, callback failures and before/after callback time in
+     * nanoseconds. Hooks that never fired are left out.
+     */
+    public static Cursor queryStats() {
+        MatrixCursor cursor = new MatrixCursor(new String[]{
+                "metric", "count", "mean", "p50", "p90", "p99", "max", "buckets"});
+        for (Result r : REPORT) {
+            LatencyHistogram before = r.hook.beforeNanos.snapshot();
+            long calls = before.count();
+            if (calls == 0) {
+                continue;
+            }
+            String name = r.spec.group + ":" + r.spec.describe();
+            cursor.addRow(new Object[]{name + ":calls", calls, 0, 0, 0, 0, 0, ""});
+            cursor.addRow(new Object[]{name + ":errors", r.hook.errors.sum(), 0, 0, 0, 0, 0, ""});
+            CaptureMetrics.addHistogramRow(cursor, name + ":before_ns", before);
+            CaptureMetrics.addHistogramRow(cursor, name + ":after_ns", r.hook.afterNanos.snapshot());
+        }
+        return cursor;
+    }
+}
@@ -0,0 +1,108 @@
+package com.applisto.appcloner;
+
+import android.os.Build;
+
+import top.canyie.pine.callback.MethodHook;
+
+/**
+ * Declarative description of one Pine hook: where it goes and what runs there.
+ *
+ * Targets and parameter types may be given as Class objects or as class names, so specs
+ * for hidden or version-specific classes can be declared without loading anything.
+ * Specs are resolved and applied in batches by {@link HookInstaller}.
+ */
+public final class HookSpec {
+    public static final int PRIORITY_LOW = -10;
+    public static final int PRIORITY_DEFAULT = 0;
+    public static final int PRIORITY_HIGH = 10;
+
+    // Method name meaning "every declared constructor"
+    static final String ALL_CONSTRUCTORS = "<init>";
+
+    final String group;
+    final Object target;      // Class<?> or class name
+    final String methodName;
+    final Object[] paramTypes; // Class<?> or class names
+    final MethodHook callback;
+    int priority = PRIORITY_DEFAULT;
+    int minSdk;
+    boolean ungated;
+
+    private HookSpec(String group, Object target, String methodName, Object[] paramTypes, MethodHook callback) {
+        this.group = group;
+        this.target = target;
+        this.methodName = methodName;
+        this.paramTypes = paramTypes;
+        this.callback = callback;
+    }
+
+    /**
+     * Hook the declared method target.methodName(paramTypes)
+     */
+    public static HookSpec method(String group, Object target, String methodName, MethodHook callback,
+                                  Object... paramTypes) {
+        return new HookSpec(group, target, methodName, paramTypes, callback);
+    }
+
+    /**
+     * Hook every declared constructor of target
+     */
+    public static HookSpec constructors(String group, Object target, MethodHook callback) {
+        return new HookSpec(group, target, ALL_CONSTRUCTORS, new Object[0], callback);
+    }
+
+    /** Higher priorities are installed first */
+    public HookSpec priority(int priority) {
+        this.priority = priority;
+        return this;
+    }
+
+    /** Skip (without reporting a failure) below this API level */
+    public HookSpec minSdk(int minSdk) {
+        this.minSdk = minSdk;
+        return this;
+    }
+
+    /**
+     * Run even while the group's switch is off. For bookkeeping that has to keep up with
+     * state the group created while it was on (e.g. surfaces already swapped).
+     */
+    public HookSpec ungated() {
+        this.ungated = true;
+        return this;
+    }
+
+    boolean isApplicable() {
+        return Build.VERSION.SDK_INT >= minSdk;
+    }
+
+    String targetName() {
+        return target instanceof Class ? ((Class<?>) target).getName() : String.valueOf(target);
+    }
+
+    /**
+     * Fully qualified "pkg.Class#method(pkg.Param,...)", the ResolutionCache key
+     */
+    String signature() {
+        StringBuilder sb = new StringBuilder(targetName()).append('#').append(methodName).append('(');
+        for (int i = 0; i < paramTypes.length; i++) {
+            if (i > 0) sb.append(',');
+            Object p = paramTypes[i];
+            sb.append(p instanceof Class ? ((Class<?>) p).getName() : String.valueOf(p));
+        }
+        return sb.append(')').toString();
+    }
+
+    /**
+     * "Class.method(Param, ...)" for logs and reports
+     */
+    String describe() {
+        StringBuilder sb = new StringBuilder(targetName()).append('.').append(methodName).append('(');
+        for (int i = 0; i < paramTypes.length; i++) {
+            if (i > 0) sb.append(", ");
+            Object p = paramTypes[i];
+            sb.append(p instanceof Class ? ((Class<?>) p).getSimpleName() : String.valueOf(p));
+        }
+        return sb.append(')').toString();
+    }
+}
@@ -0,0 +1,150 @@
+package com.applisto.appcloner;
+
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.os.Bundle;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Runtime on/off switches for hook groups (HookSpec.group).
+ *
+ * Every callback installed by HookInstaller checks its group's switch first (unless its
+ * spec is ungated), so a disabled hook stays hooked but only costs a volatile read and a
+ * thread-local push/pop per call. Switches are flipped through the ACTION_SET_HOOK_ENABLED
+ * broadcast or DefaultProvider.call(), only by callers signed like this app (see
+ * isTrustedCaller); nothing is unhooked or rehooked. All groups start enabled.
+ */
+public final class HookSwitches {
+    private static final String TAG = "HookSwitches";
+
+    public static final String ACTION_SET_HOOK_ENABLED = "com.applisto.appcloner.ACTION_SET_HOOK_ENABLED";
+    public static final String EXTRA_GROUP = "group";
+    public static final String EXTRA_ENABLED = "enabled";
+    // Any PendingIntent the sender created; its creator uid identifies the sender
+    public static final String EXTRA_AUTH = "auth";
+
+    private static final Map<String, Switch> SWITCHES = new ConcurrentHashMap<>();
+    private static final List<Listener> LISTENERS = new CopyOnWriteArrayList<>();
+
+    private HookSwitches() {}
+
+    /**
+     * One group's switch; hooks keep a reference and read enabled directly
+     */
+    public static final class Switch {
+        public final String group;
+        volatile boolean enabled = true;
+
+        Switch(String group) {
+            this.group = group;
+        }
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+    }
+
+    /**
+     * For state a group keeps outside its hooks (e.g. JVM proxy properties)
+     */
+    public interface Listener {
+        void onSwitchChanged(String group, boolean enabled);
+    }
+
+    public static Switch get(String group) {
+        Switch s = SWITCHES.get(group);
+        if (s == null) {
+            Switch created = new Switch(group);
+            s = SWITCHES.putIfAbsent(group, created);
+            if (s == null) {
+                s = created;
+            }
+        }
+        return s;
+    }
+
+    public static boolean isEnabled(String group) {
+        return get(group).enabled;
+    }
+
+    /**
+     * Turn a group on or off; returns false if it already was in that state
+     */
+    public static boolean setEnabled(String group, boolean enabled) {
+        Switch s = get(group);
+        if (s.enabled == enabled) {
+            return false;
+        }
+        s.enabled = enabled;
+        Log.i(TAG, "Hook group '" + group + "' " + (enabled ? "enabled" : "disabled"));
+        for (Listener listener : LISTENERS) {
+            try {
+                listener.onSwitchChanged(group, enabled);
+            } catch (Throwable t) {
+                Log.w(TAG, "Switch listener failed for " + group, t);
+            }
+        }
+        return true;
+    }
+
+    public static void addListener(Listener listener) {
+        LISTENERS.add(listener);
+    }
+
+    /**
+     * Group name -> enabled, for DefaultProvider.call()
+     */
+    public static Bundle toBundle() {
+        Bundle bundle = new Bundle();
+        for (Switch s : SWITCHES.values()) {
+            bundle.putBoolean(s.group, s.enabled);
+        }
+        return bundle;
+    }
+
+    /**
+     * This app's own uid, or an app signed with the same certificate. Checked against the
+     * clone's signature at runtime, since a permission declared here would not exist in
+     * the package it is merged into.
+     */
+    public static boolean isTrustedCaller(Context ctx, int uid) {
+        int myUid = Process.myUid();
+        return uid == myUid
+                || ctx.getPackageManager().checkSignatures(myUid, uid) == PackageManager.SIGNATURE_MATCH;
+    }
+
+    /**
+     * Handles ACTION_SET_HOOK_ENABLED with EXTRA_GROUP, EXTRA_ENABLED and EXTRA_AUTH.
+     * A broadcast does not carry its sender, so the sender proves itself with a
+     * PendingIntent of its own in EXTRA_AUTH.
+     */
+    public static class Receiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context ctx, Intent intent) {
+            if (!ACTION_SET_HOOK_ENABLED.equals(intent.getAction())) {
+                return;
+            }
+            PendingIntent auth = intent.getParcelableExtra(EXTRA_AUTH);
+            if (auth == null || !isTrustedCaller(ctx, auth.getCreatorUid())) {
+                Log.w(TAG, "Ignoring switch broadcast from untrusted sender "
+                        + (auth != null ? "uid " + auth.getCreatorUid() : "(no " + EXTRA_AUTH + ")"));
+                return;
+            }
+            String group = intent.getStringExtra(EXTRA_GROUP);
+            if (group == null || !intent.hasExtra(EXTRA_ENABLED)) {
+                Log.w(TAG, "Ignoring switch broadcast without " + EXTRA_GROUP + "/" + EXTRA_ENABLED);
+                return;
+            }
+            setEnabled(group, intent.getBooleanExtra(EXTRA_ENABLED, true));
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.applisto.appcloner;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Small shared pool for decode/transform/encode work of the fake camera flow.
+ *
+ * Threads run at background priority so they never compete with the host app's
+ * UI thread. Tasks are ordered by priority (user-visible delivery before
+ * prefetching and persistence) and FIFO within a priority. The queue is bounded:
+ * submissions beyond MAX_QUEUE_DEPTH are rejected instead of piling up bitmaps.
+ * Every submission returns a {@link Task} that callers cancel when the work is
+ * no longer wanted (e.g. in Activity.onDestroy).
+ */
+public final class ImageProcessingExecutor {
+    private static final String TAG = "ImageProcessingExec";
+
+    public static final int PRIORITY_INTERACTIVE = 0;
+    public static final int PRIORITY_PREFETCH = 1;
+    public static final int PRIORITY_BACKGROUND = 2;
+
+    private static final int MAX_QUEUE_DEPTH = 16;
+    private static final int THREADS = Math.max(1, Math.min(2, Runtime.getRuntime().availableProcessors() - 1));
+
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+    private static final AtomicInteger PEAK_QUEUE_DEPTH = new AtomicInteger();
+    private static final AtomicLong SUBMITTED = new AtomicLong();
+    private static final AtomicLong REJECTED = new AtomicLong();
+    private static final AtomicLong CANCELLED = new AtomicLong();
+
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(
+            THREADS, THREADS, 30, TimeUnit.SECONDS,
+            new PriorityBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(final Runnable r) {
+                    Thread t = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, "FakeImage-" + mCount.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    static {
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    private ImageProcessingExecutor() {}
+
+    /**
+     * Handle to a submitted piece of work
+     */
+    public static final class Task extends FutureTask<Void> implements Comparable<Task> {
+        private final int mPriority;
+        private final long mSequence;
+        private final String mName;
+
+        Task(Runnable work, int priority, String name) {
+            super(work, null);
+            mPriority = priority;
+            mSequence = SEQUENCE.getAndIncrement();
+            mName = name;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (mPriority != other.mPriority) {
+                return mPriority < other.mPriority ? -1 : 1;
+            }
+            return Long.compare(mSequence, other.mSequence);
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                CANCELLED.incrementAndGet();
+                // Drop it from the queue right away so it no longer counts towards the bound
+                EXECUTOR.remove(this);
+                Log.d(TAG, "Cancelled task " + mName);
+            }
+            return cancelled;
+        }
+
+        @Override
+        protected void done() {
+            if (isCancelled()) return;
+            try {
+                get();
+            } catch (Throwable t) {
+                Log.e(TAG, "Task " + mName + " failed", t);
+            }
+        }
+    }
+
+    /**
+     * Queue work. Returns null (and logs) if the queue is full.
+     */
+    public static Task submit(String name, int priority, Runnable work) {
+        if (EXECUTOR.getQueue().size() >= MAX_QUEUE_DEPTH) {
+            REJECTED.incrementAndGet();
+            Log.w(TAG, "Queue full, rejecting task " + name);
+            return null;
+        }
+
+        Task task = new Task(work, priority, name);
+        try {
+            EXECUTOR.execute(task);
+        } catch (RejectedExecutionException e) {
+            REJECTED.incrementAndGet();
+            Log.w(TAG, "Executor rejected task " + name, e);
+            return null;
+        }
+        SUBMITTED.incrementAndGet();
+
+        int depth = EXECUTOR.getQueue().size();
+        int peak;
+        while (depth > (peak = PEAK_QUEUE_DEPTH.get())) {
+            if (PEAK_QUEUE_DEPTH.compareAndSet(peak, depth)) break;
+        }
+        return task;
+    }
+
+    /**
+     * Cancel a task if non-null; safe to call repeatedly.
+     * Returns true if this call stopped a task that had not completed.
+     */
+    public static boolean cancel(Task task) {
+        return task != null && task.cancel(true);
+    }
+
+    /**
+     * Number of tasks waiting for a thread
+     */
+    public static int getQueueDepth() {
+        return EXECUTOR.getQueue().size();
+    }
+
+    /**
+     * Queue depth, peak depth, active threads and task counters as a single row
+     */
+    public static Cursor queryMetrics() {
+        MatrixCursor cursor = new MatrixCursor(new String[]{
+                "queue_depth", "peak_queue_depth", "active", "threads",
+                "submitted", "completed", "rejected", "cancelled"});
+        cursor.addRow(new Object[]{
+                EXECUTOR.getQueue().size(), PEAK_QUEUE_DEPTH.get(),
+                EXECUTOR.getActiveCount(), THREADS,
+                SUBMITTED.get(), EXECUTOR.getCompletedTaskCount(),
+                REJECTED.get(), CANCELLED.get()});
+        return cursor;
+    }
+}
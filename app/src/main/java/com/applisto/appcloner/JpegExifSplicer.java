@@ -0,0 +1,266 @@
+package com.applisto.appcloner;
+
+import android.os.Build;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * In-memory EXIF (APP1) writer for already-encoded JPEGs.
+ *
+ * Builds a small big-endian TIFF header with camera metadata and splices it
+ * right after SOI, dropping any Exif APP1 already present. The entropy-coded
+ * image data is copied verbatim, so one cached encoded frame can be shared by
+ * every capture while only the header differs.
+ */
+public final class JpegExifSplicer {
+
+    private static final int MARKER_SOI = 0xD8;
+    private static final int MARKER_APP1 = 0xE1;
+    private static final int MARKER_SOS = 0xDA;
+
+    private static final byte[] EXIF_ID = {'E', 'x', 'i', 'f', 0, 0};
+
+    // TIFF field types
+    private static final int TYPE_ASCII = 2;
+    private static final int TYPE_SHORT = 3;
+    private static final int TYPE_LONG = 4;
+    private static final int TYPE_UNDEFINED = 7;
+
+    // Tags
+    private static final int TAG_IMAGE_WIDTH = 0x0100;
+    private static final int TAG_IMAGE_LENGTH = 0x0101;
+    private static final int TAG_MAKE = 0x010F;
+    private static final int TAG_MODEL = 0x0110;
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TAG_DATETIME = 0x0132;
+    private static final int TAG_EXIF_IFD = 0x8769;
+    private static final int TAG_EXIF_VERSION = 0x9000;
+    private static final int TAG_DATETIME_ORIGINAL = 0x9003;
+    private static final int TAG_DATETIME_DIGITIZED = 0x9004;
+    private static final int TAG_PIXEL_X = 0xA002;
+    private static final int TAG_PIXEL_Y = 0xA003;
+
+    private JpegExifSplicer() {}
+
+    /**
+     * Metadata for one capture
+     */
+    public static final class ExifInfo {
+        public String make = Build.MANUFACTURER;
+        public String model = Build.MODEL;
+        public long timestampMillis = System.currentTimeMillis();
+        public int orientation = 1; // ORIENTATION_NORMAL
+        public int width;
+        public int height;
+
+        public ExifInfo(int width, int height) {
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    /**
+     * Build a complete APP1 segment (marker, length, "Exif\0\0", TIFF)
+     */
+    public static byte[] buildApp1(ExifInfo info) {
+        String date = new SimpleDateFormat("yyyy:MM:dd HH:mm:ss", Locale.US)
+                .format(new Date(info.timestampMillis));
+
+        List<Entry> exif = new ArrayList<>();
+        exif.add(new Entry(TAG_EXIF_VERSION, TYPE_UNDEFINED, 4, "0230".getBytes(StandardCharsets.US_ASCII)));
+        exif.add(ascii(TAG_DATETIME_ORIGINAL, date));
+        exif.add(ascii(TAG_DATETIME_DIGITIZED, date));
+        exif.add(longValue(TAG_PIXEL_X, info.width));
+        exif.add(longValue(TAG_PIXEL_Y, info.height));
+
+        List<Entry> ifd0 = new ArrayList<>();
+        ifd0.add(longValue(TAG_IMAGE_WIDTH, info.width));
+        ifd0.add(longValue(TAG_IMAGE_LENGTH, info.height));
+        ifd0.add(ascii(TAG_MAKE, info.make != null ? info.make : ""));
+        ifd0.add(ascii(TAG_MODEL, info.model != null ? info.model : ""));
+        ifd0.add(shortValue(TAG_ORIENTATION, info.orientation));
+        ifd0.add(ascii(TAG_DATETIME, date));
+        Entry exifPointer = longValue(TAG_EXIF_IFD, 0);
+        ifd0.add(exifPointer);
+
+        // TIFF header is 8 bytes, IFD0 follows it directly, Exif IFD follows IFD0
+        int ifd0Offset = 8;
+        int exifOffset = ifd0Offset + ifdSize(ifd0);
+        exifPointer.value = intBytes(exifOffset);
+        int tiffSize = exifOffset + ifdSize(exif);
+
+        int segmentLength = 2 + EXIF_ID.length + tiffSize;
+        if (segmentLength > 0xFFFF) {
+            throw new IllegalArgumentException("EXIF segment too large: " + segmentLength);
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(2 + segmentLength).order(ByteOrder.BIG_ENDIAN);
+        out.put((byte) 0xFF).put((byte) MARKER_APP1);
+        out.putShort((short) segmentLength);
+        out.put(EXIF_ID);
+
+        int tiffStart = out.position();
+        out.put((byte) 'M').put((byte) 'M');
+        out.putShort((short) 0x002A);
+        out.putInt(ifd0Offset);
+        writeIfd(out, tiffStart, ifd0Offset, ifd0);
+        writeIfd(out, tiffStart, exifOffset, exif);
+        return out.array();
+    }
+
+    /**
+     * Return a new JPEG with the APP1 segment inserted after SOI, replacing any existing Exif APP1.
+     * Returns the input unchanged if it does not look like a JPEG.
+     */
+    public static byte[] splice(byte[] jpeg, byte[] app1) {
+        int length = splicedLength(jpeg, app1);
+        if (length < 0) return jpeg;
+        ByteBuffer out = ByteBuffer.allocate(length);
+        writeSpliced(out, jpeg, app1);
+        return out.array();
+    }
+
+    /**
+     * Size of the spliced JPEG, or -1 if the input is not a JPEG
+     */
+    public static int splicedLength(byte[] jpeg, byte[] app1) {
+        if (!isJpeg(jpeg)) return -1;
+        int[] existing = findExifSegment(jpeg);
+        int removed = existing != null ? existing[1] : 0;
+        return jpeg.length - removed + app1.length;
+    }
+
+    /**
+     * Write the spliced JPEG straight into dst (e.g. an Image plane) without building it in memory first.
+     * Returns the number of bytes written, or -1 if the input is not a JPEG.
+     */
+    public static int writeSpliced(ByteBuffer dst, byte[] jpeg, byte[] app1) {
+        if (!isJpeg(jpeg)) return -1;
+        int start = dst.position();
+        int[] existing = findExifSegment(jpeg);
+
+        dst.put(jpeg, 0, 2); // SOI
+        dst.put(app1);
+        if (existing == null) {
+            dst.put(jpeg, 2, jpeg.length - 2);
+        } else {
+            dst.put(jpeg, 2, existing[0] - 2);
+            int after = existing[0] + existing[1];
+            dst.put(jpeg, after, jpeg.length - after);
+        }
+        return dst.position() - start;
+    }
+
+    private static boolean isJpeg(byte[] jpeg) {
+        return jpeg != null && jpeg.length >= 4
+                && (jpeg[0] & 0xFF) == 0xFF && (jpeg[1] & 0xFF) == MARKER_SOI;
+    }
+
+    /**
+     * Locate an existing Exif APP1 segment before SOS; returns {offset, totalLength} or null
+     */
+    private static int[] findExifSegment(byte[] jpeg) {
+        int pos = 2;
+        while (pos + 4 <= jpeg.length) {
+            if ((jpeg[pos] & 0xFF) != 0xFF) return null;
+            int marker = jpeg[pos + 1] & 0xFF;
+            if (marker == 0xFF) { pos++; continue; } // fill byte
+            if (marker == MARKER_SOS) return null;
+            int len = ((jpeg[pos + 2] & 0xFF) << 8) | (jpeg[pos + 3] & 0xFF);
+            if (len < 2 || pos + 2 + len > jpeg.length) return null;
+            if (marker == MARKER_APP1 && len >= 2 + EXIF_ID.length && startsWithExifId(jpeg, pos + 4)) {
+                return new int[]{pos, 2 + len};
+            }
+            pos += 2 + len;
+        }
+        return null;
+    }
+
+    private static boolean startsWithExifId(byte[] data, int offset) {
+        for (int i = 0; i < EXIF_ID.length; i++) {
+            if (data[offset + i] != EXIF_ID[i]) return false;
+        }
+        return true;
+    }
+
+    // ---- TIFF IFD serialization ----
+
+    private static final class Entry {
+        final int tag;
+        final int type;
+        final int count;
+        byte[] value;
+
+        Entry(int tag, int type, int count, byte[] value) {
+            this.tag = tag;
+            this.type = type;
+            this.count = count;
+            this.value = value;
+        }
+    }
+
+    private static Entry ascii(int tag, String s) {
+        byte[] raw = s.getBytes(StandardCharsets.US_ASCII);
+        byte[] z = new byte[raw.length + 1];
+        System.arraycopy(raw, 0, z, 0, raw.length);
+        return new Entry(tag, TYPE_ASCII, z.length, z);
+    }
+
+    private static Entry shortValue(int tag, int v) {
+        return new Entry(tag, TYPE_SHORT, 1, new byte[]{(byte) (v >> 8), (byte) v});
+    }
+
+    private static Entry longValue(int tag, int v) {
+        return new Entry(tag, TYPE_LONG, 1, intBytes(v));
+    }
+
+    private static byte[] intBytes(int v) {
+        return new byte[]{(byte) (v >> 24), (byte) (v >> 16), (byte) (v >> 8), (byte) v};
+    }
+
+    private static int ifdSize(List<Entry> entries) {
+        int size = 2 + entries.size() * 12 + 4;
+        for (Entry e : entries) {
+            if (e.value.length > 4) size += padded(e.value.length);
+        }
+        return size;
+    }
+
+    private static int padded(int n) {
+        return (n + 1) & ~1;
+    }
+
+    private static void writeIfd(ByteBuffer out, int tiffStart, int ifdOffset, List<Entry> entries) {
+        int dataOffset = ifdOffset + 2 + entries.size() * 12 + 4;
+        out.putShort((short) entries.size());
+        for (Entry e : entries) {
+            out.putShort((short) e.tag);
+            out.putShort((short) e.type);
+            out.putInt(e.count);
+            if (e.value.length <= 4) {
+                out.put(e.value);
+                for (int i = e.value.length; i < 4; i++) out.put((byte) 0);
+            } else {
+                out.putInt(dataOffset);
+                dataOffset += padded(e.value.length);
+            }
+        }
+        out.putInt(0); // no next IFD
+        for (Entry e : entries) {
+            if (e.value.length > 4) {
+                out.put(e.value);
+                if ((e.value.length & 1) != 0) out.put((byte) 0);
+            }
+        }
+        if (out.position() - tiffStart != dataOffset) {
+            throw new IllegalStateException("IFD layout mismatch");
+        }
+    }
+}
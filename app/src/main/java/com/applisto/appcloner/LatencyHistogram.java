@@ -0,0 +1,110 @@
+package com.applisto.appcloner;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram with power-of-two buckets.
+ *
+ * Bucket i holds values in [2^(i-1), 2^i), bucket 0 holds zero. Recording is a
+ * handful of atomic adds and never allocates, so it is safe on hot paths.
+ * Percentiles are reported as the upper bound of the matching bucket.
+ */
+public final class LatencyHistogram {
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) value = 0;
+        mBuckets.incrementAndGet(bucketOf(value));
+        mCount.incrementAndGet();
+        mSum.addAndGet(value);
+        long max;
+        while (value > (max = mMax.get())) {
+            if (mMax.compareAndSet(max, value)) break;
+        }
+    }
+
+    public long count() { return mCount.get(); }
+    public long sum()   { return mSum.get(); }
+    public long max()   { return mMax.get(); }
+
+    public long mean() {
+        long count = mCount.get();
+        return count == 0 ? 0 : mSum.get() / count;
+    }
+
+    /**
+     * Approximate percentile (0..100), or 0 if nothing was recorded
+     */
+    public long percentile(double p) {
+        long total = 0;
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = mBuckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) return 0;
+
+        long rank = (long) Math.ceil(total * p / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank && counts[i] > 0) {
+                return Math.min(upperBound(i), mMax.get());
+            }
+        }
+        return mMax.get();
+    }
+
+    /**
+     * Non-empty buckets as "upperBound:count" pairs separated by commas
+     */
+    public String bucketsToString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < BUCKETS; i++) {
+            long c = mBuckets.get(i);
+            if (c == 0) continue;
+            if (sb.length() > 0) sb.append(',');
+            sb.append(upperBound(i)).append(':').append(c);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Add pre-aggregated counts, e.g. a StripedHistogram snapshot; bucket i as in bucketOf
+     */
+    void merge(long[] buckets, long sum, long max) {
+        long count = 0;
+        for (int i = 0; i < buckets.length && i < BUCKETS; i++) {
+            if (buckets[i] == 0) continue;
+            mBuckets.addAndGet(i, buckets[i]);
+            count += buckets[i];
+        }
+        mCount.addAndGet(count);
+        mSum.addAndGet(sum);
+        long current;
+        while (max > (current = mMax.get())) {
+            if (mMax.compareAndSet(current, max)) break;
+        }
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) mBuckets.set(i, 0);
+        mCount.set(0);
+        mSum.set(0);
+        mMax.set(0);
+    }
+
+    static int bucketOf(long value) {
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+    }
+
+    private static long upperBound(int bucket) {
+        return bucket >= 63 ? Long.MAX_VALUE : (1L << bucket) - 1;
+    }
+}
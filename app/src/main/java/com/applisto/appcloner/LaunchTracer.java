@@ -0,0 +1,132 @@
+package com.applisto.appcloner;
+
+import android.app.Activity;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-component activity launch latency, fed by ExecStartActivityHook's InstrumentationWrapper.
+ *
+ * For every start it records the time spent in our hook chain; for explicit starts of this
+ * app's own activities it also records the time from the start request to the first onResume
+ * of the launched activity and the time spent in its onCreate. A start that fails or does
+ * not resume within PENDING_TIMEOUT_NANOS is dropped. Values are microseconds in LatencyHistograms,
+ * exported through DefaultProvider.
+ */
+public final class LaunchTracer {
+
+    // Distinct components tracked; anything beyond shares one bucket
+    private static final int MAX_COMPONENTS = 64;
+    private static final String OTHER = "(other)";
+    private static final String IMPLICIT = "(implicit)";
+    // A resume later than this belongs to some other start (or the launch never happened)
+    private static final long PENDING_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    // Component class name -> start request time, cleared by the first resume
+    private static final Map<String, Long> PENDING = new ConcurrentHashMap<>();
+    private static final Map<String, Stats> STATS = new ConcurrentHashMap<>();
+
+    private LaunchTracer() {}
+
+    private static final class Stats {
+        final LatencyHistogram launch = new LatencyHistogram();
+        final LatencyHistogram hooks = new LatencyHistogram();
+        final LatencyHistogram create = new LatencyHistogram();
+    }
+
+    /**
+     * A start went through the hook chain. forwarded is false if a hook consumed it,
+     * in which case no activity of the target component will resume for it.
+     */
+    static void onStartRequested(Context who, Intent intent, long requestNanos, long hookNanos, boolean forwarded) {
+        ComponentName component = intent != null ? intent.getComponent() : null;
+        String key = component != null ? component.getClassName() : IMPLICIT;
+        stats(key).hooks.record(hookNanos / 1000);
+        if (!PENDING.isEmpty()) {
+            purgeStale(requestNanos);
+        }
+        // Other apps' activities never resume in this process
+        if (forwarded && component != null && who != null
+                && who.getPackageName().equals(component.getPackageName())) {
+            PENDING.put(key, requestNanos);
+        }
+    }
+
+    /**
+     * The original execStartActivity failed, so nothing will resume for this start
+     */
+    static void onStartFailed(Intent intent) {
+        ComponentName component = intent != null ? intent.getComponent() : null;
+        if (component != null) {
+            PENDING.remove(component.getClassName());
+        }
+    }
+
+    static void onCreated(Activity activity, long createNanos) {
+        String key = activity.getClass().getName();
+        if (PENDING.containsKey(key)) {
+            stats(key).create.record(createNanos / 1000);
+        }
+    }
+
+    static void onResumed(Activity activity) {
+        String key = activity.getClass().getName();
+        Long requested = PENDING.remove(key);
+        if (requested != null) {
+            long elapsed = System.nanoTime() - requested;
+            if (elapsed <= PENDING_TIMEOUT_NANOS) {
+                stats(key).launch.record(elapsed / 1000);
+            }
+        }
+    }
+
+    private static void purgeStale(long now) {
+        for (Iterator<Long> it = PENDING.values().iterator(); it.hasNext(); ) {
+            if (now - it.next() > PENDING_TIMEOUT_NANOS) {
+                it.remove();
+            }
+        }
+    }
+
+    private static Stats stats(String key) {
+        Stats stats = STATS.get(key);
+        if (stats == null) {
+            if (STATS.size() >= MAX_COMPONENTS) {
+                key = OTHER;
+            }
+            Stats created = new Stats();
+            stats = STATS.putIfAbsent(key, created);
+            if (stats == null) {
+                stats = created;
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * One row per component and metric (launch_us, create_us, hooks_us)
+     */
+    public static Cursor query() {
+        MatrixCursor cursor = new MatrixCursor(new String[]{
+                "metric", "count", "mean", "p50", "p90", "p99", "max", "buckets"});
+        for (Map.Entry<String, Stats> e : STATS.entrySet()) {
+            Stats stats = e.getValue();
+            if (stats.launch.count() > 0) {
+                CaptureMetrics.addHistogramRow(cursor, e.getKey() + ":launch_us", stats.launch);
+            }
+            if (stats.create.count() > 0) {
+                CaptureMetrics.addHistogramRow(cursor, e.getKey() + ":create_us", stats.create);
+            }
+            CaptureMetrics.addHistogramRow(cursor, e.getKey() + ":hooks_us", stats.hooks);
+        }
+        return cursor;
+    }
+}
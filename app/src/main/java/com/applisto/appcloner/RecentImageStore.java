@@ -0,0 +1,290 @@
+package com.applisto.appcloner;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Persistent most-recently-used store of images picked in FakeCameraActivity.
+ *
+ * Each entry is a normalized JPEG (already fitted to the capture size) plus a small
+ * thumbnail in app-private storage, named by the SHA-1 of the normalized bytes so the
+ * same picture picked twice maps to one entry. An index file keeps the MRU order.
+ * Entries are re-selected from local files, without a picker or provider round trip.
+ */
+public final class RecentImageStore {
+    private static final String TAG = "RecentImageStore";
+
+    private static final String DIR_NAME = "fake_camera_recent";
+    private static final String INDEX_FILE = "index";
+    private static final int MAX_ENTRIES = 8;
+    private static final int THUMBNAIL_DIMENSION = 160;
+    private static final int JPEG_QUALITY = 90;
+
+    private static final Object LOCK = new Object();
+    // Keys, most recent first; loaded lazily, guarded by LOCK
+    private static List<String> sIndex;
+
+    private RecentImageStore() {}
+
+    /**
+     * One stored image
+     */
+    public static final class Entry {
+        public final String key;
+        public final File image;
+        public final File thumbnail;
+
+        Entry(File dir, String key) {
+            this.key = key;
+            this.image = new File(dir, key + ".jpg");
+            this.thumbnail = new File(dir, key + "_thumb.jpg");
+        }
+    }
+
+    /**
+     * Stored images, most recent first
+     */
+    public static List<Entry> list(Context ctx) {
+        File dir = getDir(ctx);
+        List<Entry> entries = new ArrayList<>();
+        synchronized (LOCK) {
+            for (String key : loadIndexLocked(dir)) {
+                Entry entry = new Entry(dir, key);
+                if (entry.image.isFile()) {
+                    entries.add(entry);
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Move an entry to the front after it was re-selected
+     */
+    public static void touch(Context ctx, String key) {
+        File dir = getDir(ctx);
+        synchronized (LOCK) {
+            List<String> index = loadIndexLocked(dir);
+            if (index.remove(key)) {
+                index.add(0, key);
+                saveIndexLocked(dir, index);
+            }
+        }
+    }
+
+    /**
+     * Store a picked image at background priority. The source is copied to a private temp
+     * file first, on the calling thread, since the picker's read grant may be gone by the
+     * time the background work runs. Call from a worker while the grant is still held.
+     */
+    public static void remember(Context ctx, Uri source, final int maxDimension) {
+        final Context app = ctx.getApplicationContext();
+        final File snapshot;
+        try {
+            snapshot = File.createTempFile("pick", ".tmp", app.getCacheDir());
+        } catch (IOException e) {
+            Log.w(TAG, "No temp file for recent image " + source, e);
+            return;
+        }
+        try (InputStream in = app.getContentResolver().openInputStream(source);
+             FileOutputStream out = new FileOutputStream(snapshot)) {
+            if (in == null) {
+                throw new IOException("No input stream");
+            }
+            FakeImageProcessor.copyStream(in, out);
+        } catch (IOException | SecurityException e) {
+            Log.w(TAG, "Failed to copy recent image " + source, e);
+            snapshot.delete();
+            return;
+        }
+
+        ImageProcessingExecutor.Task task = ImageProcessingExecutor.submit("remember:" + source,
+                ImageProcessingExecutor.PRIORITY_BACKGROUND, new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            Bitmap bitmap = decodeNormalized(app.getContentResolver(),
+                                    Uri.fromFile(snapshot), maxDimension);
+                            if (bitmap != null) {
+                                storeQuietly(app, bitmap);
+                            }
+                        } finally {
+                            snapshot.delete();
+                        }
+                    }
+                });
+        if (task == null) {
+            snapshot.delete();
+        }
+    }
+
+    /**
+     * Store a copy of an image the caller already decoded (and keeps ownership of), fitted
+     * to maxDimension at background priority. Silently skipped if the executor is saturated.
+     */
+    public static void remember(Context ctx, Bitmap decoded, final int maxDimension) {
+        final Context app = ctx.getApplicationContext();
+        Bitmap.Config config = decoded.getConfig() != null ? decoded.getConfig() : Bitmap.Config.ARGB_8888;
+        final Bitmap copy = decoded.copy(config, false);
+        if (copy == null) {
+            return;
+        }
+        ImageProcessingExecutor.Task task = ImageProcessingExecutor.submit("remember:bitmap",
+                ImageProcessingExecutor.PRIORITY_BACKGROUND, new Runnable() {
+                    @Override
+                    public void run() {
+                        Bitmap fitted = FakeImageProcessor.render(copy,
+                                FakeImageProcessor.fitScale(copy.getWidth(), copy.getHeight(), maxDimension), null);
+                        if (fitted != copy) {
+                            copy.recycle();
+                        }
+                        storeQuietly(app, fitted);
+                    }
+                });
+        if (task == null) {
+            copy.recycle();
+        }
+    }
+
+    private static void storeQuietly(Context ctx, Bitmap bitmap) {
+        try {
+            store(ctx, bitmap);
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to store recent image", e);
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
+    private static Bitmap decodeNormalized(ContentResolver resolver, Uri uri, int maxDimension) {
+        Bitmap decoded = FakeImageProcessor.decodeBounded(resolver, uri, maxDimension);
+        if (decoded == null) {
+            return null;
+        }
+        Bitmap fitted = FakeImageProcessor.render(decoded,
+                FakeImageProcessor.fitScale(decoded.getWidth(), decoded.getHeight(), maxDimension), null);
+        if (fitted != decoded) {
+            decoded.recycle();
+        }
+        return fitted;
+    }
+
+    private static void store(Context ctx, Bitmap bitmap) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, bos);
+        byte[] jpeg = bos.toByteArray();
+        String key = sha1(jpeg);
+
+        File dir = getDir(ctx);
+        Entry entry = new Entry(dir, key);
+        if (!entry.image.isFile()) {
+            writeAtomically(entry.image, jpeg);
+
+            Bitmap thumb = FakeImageProcessor.render(bitmap,
+                    FakeImageProcessor.fitScale(bitmap.getWidth(), bitmap.getHeight(), THUMBNAIL_DIMENSION), null);
+            ByteArrayOutputStream thumbBytes = new ByteArrayOutputStream();
+            thumb.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, thumbBytes);
+            if (thumb != bitmap) {
+                thumb.recycle();
+            }
+            writeAtomically(entry.thumbnail, thumbBytes.toByteArray());
+            Log.i(TAG, "Stored recent image " + key + " (" + jpeg.length + " bytes)");
+        }
+
+        synchronized (LOCK) {
+            List<String> index = loadIndexLocked(dir);
+            index.remove(key);
+            index.add(0, key);
+            while (index.size() > MAX_ENTRIES) {
+                Entry evicted = new Entry(dir, index.remove(index.size() - 1));
+                evicted.image.delete();
+                evicted.thumbnail.delete();
+                Log.d(TAG, "Evicted recent image " + evicted.key);
+            }
+            saveIndexLocked(dir, index);
+        }
+    }
+
+    private static File getDir(Context ctx) {
+        File dir = new File(ctx.getFilesDir(), DIR_NAME);
+        if (!dir.exists() && !dir.mkdirs()) {
+            Log.w(TAG, "Failed to create " + dir);
+        }
+        return dir;
+    }
+
+    private static List<String> loadIndexLocked(File dir) {
+        if (sIndex != null) {
+            return sIndex;
+        }
+        sIndex = new ArrayList<>();
+        File file = new File(dir, INDEX_FILE);
+        if (!file.exists()) {
+            return sIndex;
+        }
+        try (FileInputStream in = new AtomicFile(file).openRead()) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            FakeImageProcessor.copyStream(in, bos);
+            for (String line : new String(bos.toByteArray(), StandardCharsets.US_ASCII).split("\n")) {
+                if (!line.isEmpty()) {
+                    sIndex.add(line);
+                }
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to read index, starting empty", e);
+        }
+        return sIndex;
+    }
+
+    private static void saveIndexLocked(File dir, List<String> index) {
+        StringBuilder sb = new StringBuilder();
+        for (String key : index) {
+            sb.append(key).append('\n');
+        }
+        try {
+            writeAtomically(new File(dir, INDEX_FILE), sb.toString().getBytes(StandardCharsets.US_ASCII));
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write index", e);
+        }
+    }
+
+    private static void writeAtomically(File file, byte[] data) throws IOException {
+        AtomicFile atomic = new AtomicFile(file);
+        FileOutputStream out = atomic.startWrite();
+        try {
+            out.write(data);
+            atomic.finishWrite(out);
+        } catch (IOException e) {
+            atomic.failWrite(out);
+            throw e;
+        }
+    }
+
+    private static String sha1(byte[] data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(data);
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (Exception e) {
+            throw new IllegalStateException("SHA-1 unavailable", e);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.applisto.appcloner;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Outcome of hook target lookups, persisted across process starts.
+ *
+ * HookInstaller records each signature as resolved or missing. A missing signature is
+ * skipped on later starts without loading its class or throwing and logging again.
+ * The file lives in app-private storage and is discarded when Build.FINGERPRINT or the
+ * app version changes, since either can add or remove the targets.
+ */
+public final class ResolutionCache {
+    private static final String TAG = "ResolutionCache";
+
+    private static final String FILE_NAME = "hook_resolution.bin";
+    private static final int MAGIC = 0x484b5243; // "HKRC"
+    private static final int FORMAT_VERSION = 1;
+
+    public static final byte RESOLVED = 1;
+    public static final byte MISSING = 2;
+
+    // Batches installed within this window after the first are saved together
+    private static final long SAVE_DELAY_MS = 2000;
+
+    private static final Object LOCK = new Object();
+    // Guarded by LOCK; null until load()
+    private static Map<String, Byte> sEntries;
+    private static File sFile;
+    private static String sFingerprint;
+    private static long sAppVersion;
+    private static boolean sDirty;
+    private static boolean sSavePending;
+
+    private ResolutionCache() {}
+
+    /**
+     * Read the cache for this build and app version. Call once before installing hooks;
+     * without it lookups are simply not cached.
+     */
+    public static void load(Context ctx) {
+        synchronized (LOCK) {
+            if (sEntries != null) {
+                return;
+            }
+            sFile = new File(ctx.getFilesDir(), FILE_NAME);
+            sFingerprint = Build.FINGERPRINT;
+            sAppVersion = appVersion(ctx);
+            sEntries = new HashMap<>();
+
+            if (!sFile.exists()) {
+                return;
+            }
+            try (DataInputStream in = new DataInputStream(new AtomicFile(sFile).openRead())) {
+                if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION
+                        || !sFingerprint.equals(in.readUTF()) || in.readLong() != sAppVersion) {
+                    Log.i(TAG, "Build or app version changed, discarding cache");
+                    sDirty = true;
+                    return;
+                }
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    String signature = in.readUTF();
+                    sEntries.put(signature, in.readByte());
+                }
+                Log.d(TAG, "Loaded " + count + " cached lookups");
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to read cache, starting empty", e);
+                sEntries.clear();
+                sDirty = true;
+            }
+        }
+    }
+
+    /**
+     * RESOLVED, MISSING, or 0 if unknown (or the cache is not loaded)
+     */
+    static byte get(String signature) {
+        synchronized (LOCK) {
+            if (sEntries == null) {
+                return 0;
+            }
+            Byte state = sEntries.get(signature);
+            return state != null ? state : 0;
+        }
+    }
+
+    static void put(String signature, byte state) {
+        synchronized (LOCK) {
+            if (sEntries == null) {
+                return;
+            }
+            Byte previous = sEntries.put(signature, state);
+            if (previous == null || previous != state) {
+                sDirty = true;
+            }
+        }
+    }
+
+    /**
+     * Save on a background thread, off the install path. Calls made while a save is pending
+     * are folded into it, so the burst of install batches at startup costs one write.
+     */
+    static void saveAsync() {
+        synchronized (LOCK) {
+            if (sEntries == null || !sDirty || sSavePending) {
+                return;
+            }
+            sSavePending = true;
+        }
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                SystemClock.sleep(SAVE_DELAY_MS);
+                synchronized (LOCK) {
+                    sSavePending = false;
+                }
+                save();
+            }
+        }, "ResolutionCache").start();
+    }
+
+    /**
+     * Write the cache if anything changed since it was loaded or last saved
+     */
+    static void save() {
+        synchronized (LOCK) {
+            if (sEntries == null || !sDirty) {
+                return;
+            }
+            AtomicFile atomic = new AtomicFile(sFile);
+            FileOutputStream fos = null;
+            try {
+                fos = atomic.startWrite();
+                DataOutputStream out = new DataOutputStream(fos);
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeUTF(sFingerprint);
+                out.writeLong(sAppVersion);
+                out.writeInt(sEntries.size());
+                for (Map.Entry<String, Byte> e : sEntries.entrySet()) {
+                    out.writeUTF(e.getKey());
+                    out.writeByte(e.getValue());
+                }
+                out.flush();
+                atomic.finishWrite(fos);
+                sDirty = false;
+            } catch (IOException e) {
+                if (fos != null) {
+                    atomic.failWrite(fos);
+                }
+                Log.w(TAG, "Failed to write cache", e);
+            }
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private static long appVersion(Context ctx) {
+        try {
+            PackageInfo info = ctx.getPackageManager().getPackageInfo(ctx.getPackageName(), 0);
+            return Build.VERSION.SDK_INT >= Build.VERSION_CODES.P ? info.getLongVersionCode() : info.versionCode;
+        } catch (Exception e) {
+            Log.w(TAG, "Unable to read app version", e);
+            return -1;
+        }
+    }
+}
@@ -7,17 +7,17 @@ import android.util.Log;
 import org.json.JSONObject;
 
 import java.io.InputStream;
-import java.lang.reflect.Constructor;
-import java.lang.reflect.Method;
 import java.net.*;
+import java.util.ArrayList;
+import java.util.List;
 import javax.net.SocketFactory;
 
-import top.canyie.pine.Pine;
 import top.canyie.pine.callback.MethodHook;
 import top.canyie.pine.Pine.CallFrame;  // ← NEW LINE
 
 public final class Socks5ProxyHook {
     private static final String TAG = "Socks5ProxyHook";
+    static final String GROUP = "socks5";
 
     private static String proxyHost = "";
     private static int    proxyPort = 0;
@@ -41,8 +41,22 @@ public final class Socks5ProxyHook {
                 (TextUtils.isEmpty(proxyUser) ? "" : " (auth)"));
 
         applyJvmProxyProperties();
-        hookSocketConstructors();
-        hookSocketFactoryOverloads();
+        // The JVM properties live outside the hooks, follow the group switch by hand
+        HookSwitches.addListener(new HookSwitches.Listener() {
+            @Override
+            public void onSwitchChanged(String group, boolean enabled) {
+                if (!GROUP.equals(group)) return;
+                if (enabled) {
+                    applyJvmProxyProperties();
+                } else {
+                    clearJvmProxyProperties();
+                }
+            }
+        });
+        List<HookSpec> specs = new ArrayList<>();
+        hookSocketConstructors(specs);
+        hookSocketFactoryOverloads(specs);
+        HookInstaller.install(specs);
 
         installed = true;
         Log.i(TAG, "SOCKS5 proxy hook fully installed");
@@ -81,60 +95,52 @@ public final class Socks5ProxyHook {
         }
     }
 
+    private static void clearJvmProxyProperties() {
+        System.clearProperty("socksProxyHost");
+        System.clearProperty("socksProxyPort");
+        if (!TextUtils.isEmpty(proxyUser)) {
+            java.net.Authenticator.setDefault(null);
+        }
+    }
+
     /* -------------- hook Socket() ------------ */
-    private static void hookSocketConstructors() {
-        try {
-            for (Constructor<?> ctor : Socket.class.getDeclaredConstructors()) {
-                Pine.hook(ctor, new MethodHook() {
-                    @Override
-                    public void afterCall(CallFrame cf) {
-                        cf.setResult(newProxiedSocket());
-                    }
-                });
+    private static void hookSocketConstructors(List<HookSpec> specs) {
+        specs.add(HookSpec.constructors(GROUP, Socket.class, new MethodHook() {
+            @Override
+            public void afterCall(CallFrame cf) {
+                cf.setResult(newProxiedSocket());
             }
-        } catch (Throwable t) {
-            Log.e(TAG, "Socket() constructor hooks failed", t);
-        }
+        }));
     }
 
     /* ------ hook SocketFactory.createSocket() ------ */
-    private static void hookSocketFactoryOverloads() {
-        try {
-            /* 1) createSocket() */
-            Method m0 = SocketFactory.class.getDeclaredMethod("createSocket");
-            Pine.hook(m0, new MethodHook() {
-                @Override public void afterCall(CallFrame cf) { cf.setResult(newProxiedSocket()); }
-            });
-
-            /* 2) createSocket(String,int) */
-            Method m1 = SocketFactory.class.getDeclaredMethod(
-                    "createSocket", String.class, int.class);
-            Pine.hook(m1, new MethodHook() {
-                @Override public void beforeCall(CallFrame cf) throws Throwable {
-                    String host = (String) cf.args[0];
-                    int    port = (int)    cf.args[1];
-                    Socket s = newProxiedSocket();
-                    s.connect(new InetSocketAddress(host, port));
-                    cf.setResult(s);
-                }
-            });
-
-            /* 3) createSocket(InetAddress,int) */
-            Method m2 = SocketFactory.class.getDeclaredMethod(
-                    "createSocket", InetAddress.class, int.class);
-            Pine.hook(m2, new MethodHook() {
-                @Override public void beforeCall(CallFrame cf) throws Throwable {
-                    InetAddress addr = (InetAddress) cf.args[0];
-                    int         port = (int)        cf.args[1];
-                    Socket s = newProxiedSocket();
-                    s.connect(new InetSocketAddress(addr, port));
-                    cf.setResult(s);
-                }
-            });
-
-        } catch (Throwable t) {
-            Log.e(TAG, "SocketFactory hooks failed", t);
-        }
+    private static void hookSocketFactoryOverloads(List<HookSpec> specs) {
+        /* 1) createSocket() */
+        specs.add(HookSpec.method(GROUP, SocketFactory.class, "createSocket", new MethodHook() {
+            @Override public void afterCall(CallFrame cf) { cf.setResult(newProxiedSocket()); }
+        }));
+
+        /* 2) createSocket(String,int) */
+        specs.add(HookSpec.method(GROUP, SocketFactory.class, "createSocket", new MethodHook() {
+            @Override public void beforeCall(CallFrame cf) throws Throwable {
+                String host = (String) cf.args[0];
+                int    port = (int)    cf.args[1];
+                Socket s = newProxiedSocket();
+                s.connect(new InetSocketAddress(host, port));
+                cf.setResult(s);
+            }
+        }, String.class, int.class));
+
+        /* 3) createSocket(InetAddress,int) */
+        specs.add(HookSpec.method(GROUP, SocketFactory.class, "createSocket", new MethodHook() {
+            @Override public void beforeCall(CallFrame cf) throws Throwable {
+                InetAddress addr = (InetAddress) cf.args[0];
+                int         port = (int)        cf.args[1];
+                Socket s = newProxiedSocket();
+                s.connect(new InetSocketAddress(addr, port));
+                cf.setResult(s);
+            }
+        }, InetAddress.class, int.class));
     }
 
     /* -------------- helper ------------- */
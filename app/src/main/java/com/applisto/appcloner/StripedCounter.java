@@ -0,0 +1,65 @@
+package com.applisto.appcloner;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter for hot paths written from many threads.
+ *
+ * Increments go to one of several cells picked by thread id, each on its own cache line,
+ * so concurrent writers rarely touch the same line; sum() adds the cells up. Same idea as
+ * java.util.concurrent.atomic.LongAdder, which is only available from API 24.
+ */
+public final class StripedCounter {
+    static final int STRIPES = stripes();
+    // Longs per cell: 64-byte cache line
+    private static final int PAD = 8;
+
+    private final AtomicLongArray mCells = new AtomicLongArray(STRIPES * PAD);
+
+    public void increment() {
+        mCells.incrementAndGet(cell());
+    }
+
+    public void add(long delta) {
+        mCells.addAndGet(cell(), delta);
+    }
+
+    /**
+     * Current total; not a snapshot if writers are active
+     */
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += mCells.get(i * PAD);
+        }
+        return sum;
+    }
+
+    public void reset() {
+        for (int i = 0; i < STRIPES; i++) {
+            mCells.set(i * PAD, 0);
+        }
+    }
+
+    private static int cell() {
+        return stripe(STRIPES) * PAD;
+    }
+
+    /**
+     * This thread's stripe out of n (a power of two)
+     */
+    static int stripe(int n) {
+        int h = (int) Thread.currentThread().getId() * 0x9E3779B9;
+        return (h >>> 16) & (n - 1);
+    }
+
+    // Power of two, about twice the core count, at most 64
+    private static int stripes() {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        int n = 1;
+        while (n < cpus * 2 && n < 64) {
+            n <<= 1;
+        }
+        return n;
+    }
+}
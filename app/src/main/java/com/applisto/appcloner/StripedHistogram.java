@@ -0,0 +1,63 @@
+package com.applisto.appcloner;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LatencyHistogram for values recorded from many threads on hot paths (hook callbacks).
+ *
+ * Each stripe has its own buckets, sum and max on separate cache lines, picked by thread
+ * like StripedCounter; a record is two atomic adds and a read of the stripe max. The count
+ * is the sum of the buckets. snapshot() folds the stripes into a LatencyHistogram for
+ * reporting. Buckets stop at 2^31, which is plenty for nanosecond callback times.
+ */
+public final class StripedHistogram {
+    private static final int BUCKETS = 32;
+    private static final int STRIPES = Math.min(StripedCounter.STRIPES, 8);
+    // Buckets, sum, max, padded to a whole number of 64-byte lines
+    private static final int SUM = BUCKETS;
+    private static final int MAX = BUCKETS + 1;
+    private static final int STRIDE = 40;
+
+    private final AtomicLongArray mCells = new AtomicLongArray(STRIPES * STRIDE);
+
+    public void record(long value) {
+        if (value < 0) value = 0;
+        int base = StripedCounter.stripe(STRIPES) * STRIDE;
+        mCells.incrementAndGet(base + Math.min(BUCKETS - 1, LatencyHistogram.bucketOf(value)));
+        mCells.addAndGet(base + SUM, value);
+        long max;
+        while (value > (max = mCells.get(base + MAX))) {
+            if (mCells.compareAndSet(base + MAX, max, value)) break;
+        }
+    }
+
+    public long count() {
+        long count = 0;
+        for (int s = 0; s < STRIPES; s++) {
+            for (int i = 0; i < BUCKETS; i++) {
+                count += mCells.get(s * STRIDE + i);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Current totals as a LatencyHistogram; not atomic if writers are active
+     */
+    public LatencyHistogram snapshot() {
+        long[] buckets = new long[BUCKETS];
+        long sum = 0;
+        long max = 0;
+        for (int s = 0; s < STRIPES; s++) {
+            int base = s * STRIDE;
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] += mCells.get(base + i);
+            }
+            sum += mCells.get(base + SUM);
+            max = Math.max(max, mCells.get(base + MAX));
+        }
+        LatencyHistogram h = new LatencyHistogram();
+        h.merge(buckets, sum, max);
+        return h;
+    }
+}